@@ -0,0 +1,102 @@
+/**
+ * What a neuron does with the weighted sum of its inputs, and the derivative
+ * backpropagation needs, which every activation here can give in terms of its
+ * own output. The sigmoid is what NeuralNet has always used (now through
+ * Math.exp rather than Math.pow); the table sigmoid trades a bounded error for
+ * speed, and tanh and ReLU are there for hidden layers.
+ */
+public abstract class Activation {
+
+	public static final Activation SIGMOID = new Sigmoid();
+	public static final Activation SIGMOID_TABLE = new SigmoidTable();
+	public static final Activation TANH = new Tanh();
+	public static final Activation RELU = new Relu();
+
+	private static final Activation[] ALL = { SIGMOID, SIGMOID_TABLE, TANH, RELU };
+
+	// Returns the activation with the given name
+	public static Activation forName(String name) {
+		for (Activation a : ALL) {
+			if (a.name().equals(name))
+				return a;
+		}
+		throw new IllegalArgumentException("Unknown activation: " + name);
+	}
+
+	public abstract String name();
+
+	// Returns the output for the weighted sum x
+	public abstract double apply(double x);
+
+	// Returns the derivative of the activation where its output is y
+	public abstract double derivative(double y);
+
+	private static class Sigmoid extends Activation {
+		public String name() { return "sigmoid"; }
+
+		public double apply(double x) {
+			return 1 / (1 + Math.exp(-x));
+		}
+
+		public double derivative(double y) {
+			return y * (1 - y);
+		}
+	}
+
+	/**
+	 * The sigmoid interpolated linearly between values tabulated every 1/128
+	 * over [-16, 16], and held at the end values beyond. The interpolation is
+	 * off by at most h^2 / 8 times the largest |sigmoid''| (about 0.096), or
+	 * 7.3e-7, and the ends by 1.1e-7, so every output is within 1e-6 of the
+	 * sigmoid. The table (32 KB) stays in the L1 or L2 cache.
+	 */
+	private static class SigmoidTable extends Sigmoid {
+		private static final double RANGE = 16;
+		private static final int STEPS = 4096;
+		private static final double SCALE = STEPS / (2 * RANGE);
+		private static final double[] TABLE = new double[STEPS + 1];
+
+		static {
+			for (int i = 0; i <= STEPS; i++)
+				TABLE[i] = 1 / (1 + Math.exp(-(i / SCALE - RANGE)));
+		}
+
+		public String name() { return "sigmoid-table"; }
+
+		public double apply(double x) {
+			if (x <= -RANGE)
+				return TABLE[0];
+			if (x >= RANGE)
+				return TABLE[STEPS];
+			double t = (x + RANGE) * SCALE;
+			int i = (int) t;
+			double low = TABLE[i];
+			// t can round up to STEPS just below RANGE
+			return i == STEPS ? low : low + (t - i) * (TABLE[i + 1] - low);
+		}
+	}
+
+	private static class Tanh extends Activation {
+		public String name() { return "tanh"; }
+
+		public double apply(double x) {
+			return Math.tanh(x);
+		}
+
+		public double derivative(double y) {
+			return 1 - y * y;
+		}
+	}
+
+	private static class Relu extends Activation {
+		public String name() { return "relu"; }
+
+		public double apply(double x) {
+			return x > 0 ? x : 0;
+		}
+
+		public double derivative(double y) {
+			return y > 0 ? 1 : 0;
+		}
+	}
+}
@@ -0,0 +1,337 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+/**
+ * A buffered tokenizer for ARFF files. Header lines are handed out as strings,
+ * but the @DATA section is parsed straight out of the char buffer: no Scanner,
+ * no regex delimiters, and no substrings on the common path. Data rows may be
+ * dense or in the sparse "{index value, ...}" form.
+ */
+public class ArffParser {
+
+	private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4,
+			1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16,
+			1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+	private Reader in;
+	private char[] buf;
+	private int pos;
+	private int end;
+	private boolean eof;
+
+	// Bounds of the current line within buf
+	private int lineStart;
+	private int lineEnd;
+
+	public ArffParser(Reader in) {
+		this(in, 1 << 16);
+	}
+
+	public ArffParser(Reader in, int bufferSize) {
+		this.in = in;
+		this.buf = new char[bufferSize];
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+
+	// Returns the next line (without its terminator), or null at the end of the input
+	public String readLine() throws IOException {
+		if (!nextLine())
+			return null;
+		return new String(buf, lineStart, lineEnd - lineStart);
+	}
+
+	// Parses the remaining lines as data rows and appends them to m. The
+	// attributes of m must already have been read from the header.
+	public void readData(Matrix m) throws Exception {
+		NominalTable[] tables = nominalTables(m);
+		double[] row = new double[m.cols()];
+		while (nextLine()) {
+			int kind = parseRow(buf, lineStart, lineEnd, tables, row);
+			if (kind == SPARSE_ROW && m.rows() == 0)
+				m.preferSparse();
+			if (kind != NO_ROW)
+				m.m_storage.addRow(row);
+		}
+	}
+
+	// Builds the value lookup tables for the nominal columns of m (null for continuous ones)
+	static NominalTable[] nominalTables(Matrix m) {
+		NominalTable[] tables = new NominalTable[m.cols()];
+		for (int i = 0; i < tables.length; i++) {
+			if (m.valueCount(i) > 0)
+				tables[i] = new NominalTable(m.m_str_to_enum.get(i));
+		}
+		return tables;
+	}
+
+	// What parseRow found on a line
+	static final int NO_ROW = 0; // a blank line or a comment
+	static final int DENSE_ROW = 1;
+	static final int SPARSE_ROW = 2; // "{index value, ...}", every other value 0
+
+	// Parses the data line b[start, end) into row, zeroing any columns the line
+	// leaves out, and returns which kind of line it was.
+	static int parseRow(char[] b, int start, int end, NominalTable[] tables,
+			double[] row) throws Exception {
+		while (start < end && b[start] <= ' ')
+			start++;
+		while (end > start && b[end - 1] <= ' ')
+			end--;
+		if (start == end || b[start] == '%')
+			return NO_ROW;
+
+		boolean sparse = b[start] == '{';
+		try {
+			int curPos = 0;
+			int p = start;
+			int valuesEnd = end;
+			if (sparse) {
+				if (b[end - 1] != '}')
+					throw new Exception("Expected a sparse row to end with '}'");
+				p++;
+				valuesEnd--;
+				for (int i = 0; i < row.length; i++)
+					row[i] = 0;
+			}
+			while (p < valuesEnd) {
+				int tokenStart = p;
+				char quote = 0;
+				while (p < valuesEnd) {
+					char c = b[p];
+					if (quote != 0) {
+						if (c == quote)
+							quote = 0;
+					} else if (c == '\'' || c == '"')
+						quote = c;
+					else if (c == ',')
+						break;
+					p++;
+				}
+				int tokenEnd = p;
+				p++; // skip the comma
+
+				while (tokenStart < tokenEnd && b[tokenStart] <= ' ')
+					tokenStart++;
+				while (tokenEnd > tokenStart && b[tokenEnd - 1] <= ' ')
+					tokenEnd--;
+				if (tokenStart == tokenEnd)
+					continue;
+
+				int col;
+				if (sparse) {
+					// A sparse entry is the column index, whitespace, then the value
+					long index = 0;
+					int i = tokenStart;
+					while (i < tokenEnd && b[i] >= '0' && b[i] <= '9')
+						index = Math.min(index * 10 + (b[i++] - '0'),
+								Integer.MAX_VALUE);
+					if (i == tokenStart || i == tokenEnd || b[i] > ' ')
+						throw new Exception("Expected \"index value\" but found '"
+								+ new String(b, tokenStart, tokenEnd - tokenStart)
+								+ "'");
+					while (b[i] <= ' ')
+						i++;
+					col = (int) index;
+					tokenStart = i;
+				} else
+					col = curPos++;
+
+				if (col >= row.length)
+					throw new IndexOutOfBoundsException("Index " + col
+							+ " out of bounds for length " + row.length);
+				row[col] = parseValue(b, tokenStart, tokenEnd, tables[col], start,
+						end);
+			}
+			for (; curPos < row.length && !sparse; curPos++)
+				row[curPos] = 0;
+		} catch (Exception e) {
+			throw new Exception("Error parsing line: "
+					+ new String(b, start, end - start) + "\n" + e.toString());
+		}
+		return sparse ? SPARSE_ROW : DENSE_ROW;
+	}
+
+	// Converts the value b[tokenStart, tokenEnd) of a column with the given
+	// table (null for continuous columns). The line itself is b[lineStart, lineEnd).
+	private static double parseValue(char[] b, int tokenStart, int tokenEnd,
+			NominalTable table, int lineStart, int lineEnd) throws Exception {
+		// Missing instances appear in the dataset as a double defined as MISSING
+		if (tokenEnd - tokenStart == 1 && b[tokenStart] == '?')
+			return Matrix.MISSING;
+		// Continuous values appear in the instance vector as they are
+		else if (table == null)
+			return parseDouble(b, tokenStart, tokenEnd);
+		// Discrete values appear as an index to the "name"
+		// of that value in the "attributeValue" structure
+		int value = table.get(b, tokenStart, tokenEnd);
+		if (value == -1)
+			throw new Exception("Error parsing the value '"
+					+ new String(b, tokenStart, tokenEnd - tokenStart)
+					+ "' on line: " + new String(b, lineStart, lineEnd - lineStart));
+		return value;
+	}
+
+	// Parses a decimal number without allocating. Anything the fast path cannot
+	// convert exactly is handed to Double.parseDouble, so the result (and any
+	// NumberFormatException) is always the same as Double.parseDouble's.
+	static double parseDouble(char[] b, int start, int end) {
+		int i = start;
+		boolean negative = false;
+		if (i < end && (b[i] == '-' || b[i] == '+')) {
+			negative = b[i] == '-';
+			i++;
+		}
+		long mantissa = 0;
+		int significantDigits = 0;
+		int exponent = 0;
+		boolean anyDigits = false;
+		while (i < end && b[i] >= '0' && b[i] <= '9') {
+			mantissa = mantissa * 10 + (b[i] - '0');
+			if (mantissa != 0)
+				significantDigits++;
+			anyDigits = true;
+			i++;
+		}
+		if (i < end && b[i] == '.') {
+			i++;
+			while (i < end && b[i] >= '0' && b[i] <= '9') {
+				mantissa = mantissa * 10 + (b[i] - '0');
+				if (mantissa != 0)
+					significantDigits++;
+				exponent--;
+				anyDigits = true;
+				i++;
+			}
+		}
+		if (anyDigits && i < end && (b[i] == 'e' || b[i] == 'E')) {
+			i++;
+			boolean negativeExponent = false;
+			if (i < end && (b[i] == '-' || b[i] == '+')) {
+				negativeExponent = b[i] == '-';
+				i++;
+			}
+			int e = 0;
+			boolean anyExponentDigits = false;
+			while (i < end && b[i] >= '0' && b[i] <= '9' && e < 10000) {
+				e = e * 10 + (b[i] - '0');
+				anyExponentDigits = true;
+				i++;
+			}
+			if (!anyExponentDigits)
+				anyDigits = false;
+			exponent += negativeExponent ? -e : e;
+		}
+
+		// Up to 15 significant digits and a power of ten up to 22 are both exact
+		// in a double, so a single multiply or divide is correctly rounded.
+		if (anyDigits && i == end && significantDigits <= 15) {
+			double value = mantissa;
+			if (mantissa == 0)
+				return negative ? -0.0 : 0.0;
+			if (exponent >= 0 && exponent < POWERS_OF_TEN.length)
+				return negative ? -(value * POWERS_OF_TEN[exponent]) : value
+						* POWERS_OF_TEN[exponent];
+			if (exponent < 0 && -exponent < POWERS_OF_TEN.length)
+				return negative ? -(value / POWERS_OF_TEN[-exponent]) : value
+						/ POWERS_OF_TEN[-exponent];
+		}
+		return Double.parseDouble(new String(b, start, end - start));
+	}
+
+	// Advances to the next line, refilling the buffer as needed. Returns false at the end of the input.
+	private boolean nextLine() throws IOException {
+		int scan = pos;
+		while (true) {
+			while (scan < end) {
+				char c = buf[scan];
+				if (c == '\n' || c == '\r') {
+					lineStart = pos;
+					lineEnd = scan;
+					pos = scan + 1;
+					if (c == '\r' && pos < end && buf[pos] == '\n')
+						pos++;
+					return true;
+				}
+				scan++;
+			}
+			if (eof) {
+				if (pos == end)
+					return false;
+				lineStart = pos;
+				lineEnd = end;
+				pos = end;
+				return true;
+			}
+			scan -= pos;
+			fill();
+		}
+	}
+
+	// Moves the unread part of the buffer to the front and reads more input after it
+	private void fill() throws IOException {
+		int remaining = end - pos;
+		if (remaining == buf.length) {
+			char[] bigger = new char[buf.length * 2];
+			System.arraycopy(buf, pos, bigger, 0, remaining);
+			buf = bigger;
+		} else
+			System.arraycopy(buf, pos, buf, 0, remaining);
+		pos = 0;
+		end = remaining;
+		int n = in.read(buf, end, buf.length - end);
+		if (n < 0)
+			eof = true;
+		else
+			end += n;
+	}
+
+	/**
+	 * An open-addressing map from nominal value names to their enum values,
+	 * looked up directly from a range of chars instead of from a String.
+	 */
+	static class NominalTable {
+		private char[][] keys;
+		private int[] values;
+		private int mask;
+
+		NominalTable(TreeMap<String, Integer> strToEnum) {
+			int capacity = 4;
+			while (capacity < strToEnum.size() * 2)
+				capacity *= 2;
+			keys = new char[capacity][];
+			values = new int[capacity];
+			mask = capacity - 1;
+			for (Entry<String, Integer> e : strToEnum.entrySet()) {
+				int slot = e.getKey().hashCode() & mask;
+				while (keys[slot] != null)
+					slot = (slot + 1) & mask;
+				keys[slot] = e.getKey().toCharArray();
+				values[slot] = e.getValue();
+			}
+		}
+
+		// Returns the enum value of b[start, end), or -1 if it is not a known value
+		int get(char[] b, int start, int end) {
+			int hash = 0;
+			for (int i = start; i < end; i++)
+				hash = 31 * hash + b[i];
+			int length = end - start;
+			for (int slot = hash & mask; keys[slot] != null; slot = (slot + 1) & mask) {
+				char[] key = keys[slot];
+				if (key.length != length)
+					continue;
+				int i = 0;
+				while (i < length && key[i] == b[start + i])
+					i++;
+				if (i == length)
+					return values[slot];
+			}
+			return -1;
+		}
+	}
+}
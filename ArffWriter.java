@@ -0,0 +1,210 @@
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Streams a matrix out in ARFF through a char buffer. Numbers are formatted
+ * without going through Double.toString where that can be done exactly, and
+ * nominal values are looked up in arrays built once from the header. Rows of a
+ * sparse matrix are written in the sparse "{index value, ...}" form, and
+ * missing values as '?'.
+ */
+public class ArffWriter {
+
+	private static final long[] POWERS_OF_TEN = { 1L, 10L, 100L, 1000L,
+			10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L };
+
+	private final Writer out;
+	private final char[] buf;
+	private int pos;
+
+	private char[][][] values; // the names of each column's nominal values
+	private boolean sparse;
+
+	public ArffWriter(Writer out) {
+		this.out = out;
+		this.buf = new char[1 << 16];
+	}
+
+	// Writes to out in the default charset, gzipped if gzip is true
+	public ArffWriter(OutputStream out, boolean gzip) throws IOException {
+		this(new OutputStreamWriter(gzip ? new GZIPOutputStream(out, 1 << 16)
+				: out));
+	}
+
+	// Writes m to filename, gzipped if the name ends with ".gz"
+	public static void write(Matrix m, String filename) throws IOException {
+		ArffWriter writer = new ArffWriter(new BufferedOutputStream(
+				new FileOutputStream(filename), 1 << 16), filename.endsWith(".gz"));
+		try {
+			writer.write(m);
+		} finally {
+			writer.close();
+		}
+	}
+
+	// Writes the header and every row of m
+	public void write(Matrix m) throws IOException {
+		writeHeader(m);
+		double[] row = new double[m.cols()];
+		for (int r = 0; r < m.rows(); r++) {
+			m.copyRow(r, row);
+			writeRow(row);
+		}
+	}
+
+	// Writes the header of m. Rows can then be written one at a time.
+	public void writeHeader(Matrix m) throws IOException {
+		sparse = m.m_storage != null && m.isSparse();
+		values = new char[m.cols()][][];
+		append("@RELATION Untitled\n");
+		for (int c = 0; c < m.cols(); c++) {
+			append("@ATTRIBUTE ");
+			// Unnamed columns (see Matrix.setSize) would make the header unreadable
+			append(m.attrName(c).isEmpty() ? "attr" + c : m.attrName(c));
+			int vals = m.valueCount(c);
+			if (vals == 0) {
+				append(" CONTINUOUS\n");
+				continue;
+			}
+			values[c] = new char[vals][];
+			append(" {");
+			for (int v = 0; v < vals; v++) {
+				values[c][v] = m.attrValue(c, v).toCharArray();
+				if (v > 0)
+					append(", ");
+				append(values[c][v]);
+			}
+			append("}\n");
+		}
+		append("@DATA\n");
+	}
+
+	// Writes a row of the matrix whose header was written last
+	public void writeRow(double[] row) throws IOException {
+		if (sparse) {
+			append('{');
+			boolean first = true;
+			for (int c = 0; c < row.length; c++) {
+				if (row[c] == 0)
+					continue;
+				if (!first)
+					append(", ");
+				first = false;
+				appendLong(c);
+				append(' ');
+				appendValue(c, row[c]);
+			}
+			append('}');
+		} else {
+			for (int c = 0; c < row.length; c++) {
+				if (c > 0)
+					append(", ");
+				appendValue(c, row[c]);
+			}
+		}
+		append('\n');
+	}
+
+	public void flush() throws IOException {
+		out.write(buf, 0, pos);
+		pos = 0;
+		out.flush();
+	}
+
+	public void close() throws IOException {
+		flush();
+		out.close();
+	}
+
+	private void appendValue(int c, double v) throws IOException {
+		if (v == Matrix.MISSING)
+			append('?');
+		else if (values[c] != null)
+			append(values[c][(int) v]);
+		else
+			appendDouble(v);
+	}
+
+	// Writes v so that parsing it gives back exactly v. Values with at most 9
+	// decimals in [1e-3, 1e7) are formatted directly; anything else (and any
+	// value the direct form would not give back exactly) by Double.toString.
+	private void appendDouble(double v) throws IOException {
+		double abs = Math.abs(v);
+		if (abs >= 1e-3 && abs < 1e7) {
+			for (int decimals = 1; decimals < POWERS_OF_TEN.length; decimals++) {
+				long scaled = Math.round(abs * POWERS_OF_TEN[decimals]);
+				// Both operands of the division are exact, so it is correctly
+				// rounded, and equal to v only if the digits parse back to v
+				if (scaled >= 1L << 53
+						|| (double) scaled / POWERS_OF_TEN[decimals] != abs)
+					continue;
+				if (v < 0)
+					append('-');
+				appendLong(scaled / POWERS_OF_TEN[decimals]);
+				append('.');
+				long fraction = scaled % POWERS_OF_TEN[decimals];
+				for (long p = POWERS_OF_TEN[decimals - 1]; p > fraction && p > 1; p /= 10)
+					append('0');
+				appendLong(fraction);
+				return;
+			}
+		}
+		append(Double.toString(v));
+	}
+
+	private void appendLong(long v) throws IOException {
+		if (pos + 20 > buf.length)
+			flushBuffer();
+		if (v == 0) {
+			buf[pos++] = '0';
+			return;
+		}
+		int start = pos;
+		for (; v > 0; v /= 10)
+			buf[pos++] = (char) ('0' + v % 10);
+		for (int i = start, j = pos - 1; i < j; i++, j--) {
+			char tmp = buf[i];
+			buf[i] = buf[j];
+			buf[j] = tmp;
+		}
+	}
+
+	private void append(char c) throws IOException {
+		if (pos == buf.length)
+			flushBuffer();
+		buf[pos++] = c;
+	}
+
+	private void append(char[] s) throws IOException {
+		if (pos + s.length > buf.length)
+			flushBuffer();
+		if (s.length > buf.length)
+			out.write(s);
+		else {
+			System.arraycopy(s, 0, buf, pos, s.length);
+			pos += s.length;
+		}
+	}
+
+	private void append(String s) throws IOException {
+		int length = s.length();
+		if (pos + length > buf.length)
+			flushBuffer();
+		if (length > buf.length)
+			out.write(s);
+		else {
+			s.getChars(0, length, buf, pos);
+			pos += length;
+		}
+	}
+
+	private void flushBuffer() throws IOException {
+		out.write(buf, 0, pos);
+		pos = 0;
+	}
+}
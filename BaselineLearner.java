@@ -3,6 +3,7 @@
 // See http://creativecommons.org/publicdomain/zero/1.0/
 // ----------------------------------------------------------------
 
+import java.io.IOException;
 import java.util.ArrayList;
 
 /**
@@ -25,6 +26,14 @@ public class BaselineLearner extends SupervisedLearner {
 		}
 	}
 
+	void writeModel(ModelFile.Writer out) throws IOException {
+		out.putDoubles(m_labels);
+	}
+
+	void readModel(ModelFile.Reader in, Matrix features, Matrix labels) throws Exception {
+		m_labels = in.getDoubles();
+	}
+
 	public void predict(double[] features, double[] labels) throws Exception {
 		for(int i = 0; i < m_labels.length; i++)
 			labels[i] = m_labels[i];
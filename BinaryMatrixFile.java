@@ -0,0 +1,314 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Reads and writes a Matrix in a compact binary format, so that a dataset only
+ * has to be parsed from ARFF once. Files are read through FileChannel.map.
+ *
+ * Layout (little-endian):
+ *   int magic, int version, long source modified time, long source length,
+ *   int flags, int rows, int cols
+ *   per column: name, value count, value names (a string is an int byte
+ *     count followed by that many bytes of UTF-8)
+ *   per column: a missing-value bitmap of (rows + 63) / 64 longs
+ *   padding to a multiple of 8 bytes, then rows * cols doubles, row after row
+ * Missing cells hold 0 in the data section; the bitmap says which they are.
+ * A matrix with the off-heap layout maps the data section copy-on-write
+ * instead of reading it.
+ */
+public class BinaryMatrixFile {
+
+	static final int MAGIC = 0x584D4C4D; // "MLMX"
+	static final int VERSION = 2;
+	static final int FLAG_SPARSE = 1; // the rows were kept sparse in memory
+	static final String SUFFIX = ".bin"; // appended to the ARFF name for the cached copy
+
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final long MAX_WINDOW = 1 << 30; // bytes mapped at a time
+	private static final long PARALLEL_PARSE_SIZE = 16 << 20; // ARFF files this big are parsed in parallel
+
+	// Loads a dataset. An ARFF file is read from its binary cache when the cache
+	// is fresh; otherwise it is parsed and the cache is (re)written.
+	public static void loadCached(Matrix m, String filename) throws Exception {
+		if (filename.endsWith(SUFFIX)) {
+			load(m, filename);
+			return;
+		}
+		File source = new File(filename);
+		File cache = new File(filename + SUFFIX);
+		if (cache.exists() && source.exists()) {
+			try {
+				if (load(m, cache, source.lastModified(), source.length()))
+					return;
+			} catch (Exception e) {
+				// A damaged or outdated cache is simply rebuilt
+			}
+		}
+		m.loadArff(filename, source.length() >= PARALLEL_PARSE_SIZE
+				&& ForkJoinPool.commonPool().getParallelism() > 1);
+		try {
+			save(m, cache, source.lastModified(), source.length());
+		} catch (IOException e) {
+			// Not being able to write the cache (e.g. a read-only directory) only costs speed
+		}
+	}
+
+	// Saves m to filename
+	public static void save(Matrix m, String filename) throws IOException {
+		save(m, new File(filename), 0, 0);
+	}
+
+	// Loads filename into m
+	public static void load(Matrix m, String filename) throws Exception {
+		load(m, new File(filename), -1, -1);
+	}
+
+	// Writes to a temporary file first so that readers never see a partial file
+	private static void save(Matrix m, File file, long sourceModified,
+			long sourceLength) throws IOException {
+		// Each save gets a file of its own, so processes saving the same file at
+		// once never write to (or truncate) one another's
+		Path tmp = Files.createTempFile(file.getAbsoluteFile().getParentFile().toPath(),
+				file.getName(), ".tmp");
+		try {
+			RandomAccessFile raf = new RandomAccessFile(tmp.toFile(), "rw");
+			try {
+				Output out = new Output(raf.getChannel());
+				int rows = m.rows();
+				int cols = m.cols();
+				out.putInt(MAGIC);
+				out.putInt(VERSION);
+				out.putLong(sourceModified);
+				out.putLong(sourceLength);
+				out.putInt(m.isSparse() ? FLAG_SPARSE : 0);
+				out.putInt(rows);
+				out.putInt(cols);
+				writeAttributes(out, m);
+				MissingMask mask = m.missingMask();
+				int words = (rows + 63) / 64;
+				for (int c = 0; c < cols; c++) {
+					long[] column = mask.column(c);
+					for (int w = 0; w < words; w++)
+						out.putLong(w < column.length ? column[w] : 0);
+				}
+				out.align(8);
+				double[] row = new double[cols];
+				for (int r = 0; r < rows; r++) {
+					m.copyRow(r, row);
+					for (int c = 0; c < cols; c++)
+						out.putDouble(row[c] == Matrix.MISSING ? 0 : row[c]);
+				}
+				out.flush();
+			} finally {
+				raf.close();
+			}
+			Files.move(tmp, file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	// Loads file into m. If sourceModified is not -1, the file must have been
+	// made from a source with that modified time and length; returns false
+	// (leaving m untouched) if it was not.
+	private static boolean load(Matrix m, File file, long sourceModified,
+			long sourceLength) throws Exception {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					Math.min(size, MAX_WINDOW)).order(ByteOrder.LITTLE_ENDIAN);
+			if (in.getInt() != MAGIC)
+				throw new Exception(file + " is not a binary dataset");
+			if (in.getInt() != VERSION)
+				throw new Exception(file + " was written by a different version");
+			long modified = in.getLong();
+			long length = in.getLong();
+			if (sourceModified != -1
+					&& (modified != sourceModified || length != sourceLength))
+				return false;
+			int flags = in.getInt();
+			int rows = in.getInt();
+			int cols = in.getInt();
+			Matrix attributes = new Matrix();
+			readAttributes(in, cols, attributes);
+
+			// The bitmaps (rows * cols / 8 bytes) can outgrow one window, so they
+			// are mapped a window of whole columns at a time, like the data
+			int words = (rows + 63) / 64;
+			long bitmapBytes = words * 8L;
+			long offset = in.position();
+			if (offset + cols * bitmapBytes > size)
+				throw new Exception(file + " is truncated");
+			long[][] missing = new long[cols][words];
+			long columnsPerWindow = Math.max(1, MAX_WINDOW / Math.max(1, bitmapBytes));
+			for (int c = 0; c < cols; ) {
+				int count = (int) Math.min(columnsPerWindow, cols - c);
+				LongBuffer bitmaps = channel.map(FileChannel.MapMode.READ_ONLY,
+						offset, count * bitmapBytes)
+						.order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+				for (int i = 0; i < count; i++)
+					bitmaps.get(missing[c + i]);
+				offset += count * bitmapBytes;
+				c += count;
+			}
+			long dataStart = (offset + 7) & ~7L;
+			if (dataStart + (long) rows * cols * 8 > size)
+				throw new Exception(file + " is truncated");
+
+			m.m_attr_name = attributes.m_attr_name;
+			m.m_str_to_enum = attributes.m_str_to_enum;
+			m.m_enum_to_str = attributes.m_enum_to_str;
+			if (m.m_layout == Matrix.LAYOUT_OFF_HEAP)
+				// Use the file's pages themselves instead of copying them
+				m.m_storage = OffHeapStorage.map(channel, dataStart, rows, cols);
+			else {
+				m.m_storage = m.newStorage(0, cols);
+				if ((flags & FLAG_SPARSE) != 0)
+					m.preferSparse();
+			}
+			double[] row = new double[cols];
+			long rowsPerWindow = Math.max(1, MAX_WINDOW / Math.max(1, cols * 8L));
+			for (int r = m.rows(); r < rows; ) {
+				int count = (int) Math.min(rowsPerWindow, rows - r);
+				DoubleBuffer data = channel.map(FileChannel.MapMode.READ_ONLY,
+						dataStart + (long) r * cols * 8, (long) count * cols * 8)
+						.order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+				for (int i = 0; i < count; i++) {
+					data.get(row);
+					m.m_storage.addRow(row);
+				}
+				r += count;
+			}
+			MissingMask mask = new MissingMask(cols);
+			for (int c = 0; c < cols; c++) {
+				for (int w = 0; w < words; w++) {
+					for (long bits = missing[c][w]; bits != 0; bits &= bits - 1)
+						m.set(w * 64 + Long.numberOfTrailingZeros(bits), c,
+								Matrix.MISSING);
+				}
+				mask.setColumn(c, missing[c]);
+			}
+			m.setMissingMask(mask);
+			return true;
+		} finally {
+			raf.close();
+		}
+	}
+
+	// Writes the name and nominal values of each column of m
+	static void writeAttributes(Output out, Matrix m) throws IOException {
+		for (int c = 0; c < m.cols(); c++) {
+			out.putString(m.attrName(c));
+			out.putInt(m.valueCount(c));
+			for (int v = 0; v < m.valueCount(c); v++)
+				out.putString(m.attrValue(c, v));
+		}
+	}
+
+	// Reads the attributes of cols columns, as written by writeAttributes, into m
+	static void readAttributes(ByteBuffer in, int cols, Matrix m) {
+		ArrayList<String> names = new ArrayList<String>();
+		ArrayList<TreeMap<String, Integer>> strToEnum = new ArrayList<TreeMap<String, Integer>>();
+		ArrayList<TreeMap<Integer, String>> enumToStr = new ArrayList<TreeMap<Integer, String>>();
+		for (int c = 0; c < cols; c++) {
+			names.add(getString(in));
+			TreeMap<String, Integer> ste = new TreeMap<String, Integer>();
+			TreeMap<Integer, String> ets = new TreeMap<Integer, String>();
+			int values = in.getInt();
+			for (int v = 0; v < values; v++) {
+				String value = getString(in);
+				ste.put(value, v);
+				ets.put(v, value);
+			}
+			strToEnum.add(ste);
+			enumToStr.add(ets);
+		}
+		m.m_attr_name = names;
+		m.m_str_to_enum = strToEnum;
+		m.m_enum_to_str = enumToStr;
+	}
+
+	static String getString(ByteBuffer in) {
+		byte[] bytes = new byte[in.getInt()];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * A little-endian staging buffer in front of a FileChannel.
+	 */
+	static class Output {
+		private final FileChannel channel;
+		private final ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE).order(
+				ByteOrder.LITTLE_ENDIAN);
+		private long written;
+
+		Output(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		void putInt(int v) throws IOException {
+			ensure(4);
+			buf.putInt(v);
+		}
+
+		void putLong(long v) throws IOException {
+			ensure(8);
+			buf.putLong(v);
+		}
+
+		void putDouble(double v) throws IOException {
+			ensure(8);
+			buf.putDouble(v);
+		}
+
+		void putString(String s) throws IOException {
+			byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+			putInt(bytes.length);
+			if (bytes.length > buf.capacity()) {
+				flush();
+				ByteBuffer big = ByteBuffer.wrap(bytes);
+				while (big.hasRemaining())
+					written += channel.write(big);
+			} else {
+				ensure(bytes.length);
+				buf.put(bytes);
+			}
+		}
+
+		// Pads with zeros up to a multiple of the given number of bytes
+		void align(int bytes) throws IOException {
+			while ((written + buf.position()) % bytes != 0) {
+				ensure(1);
+				buf.put((byte) 0);
+			}
+		}
+
+		void flush() throws IOException {
+			buf.flip();
+			while (buf.hasRemaining())
+				written += channel.write(buf);
+			buf.clear();
+		}
+
+		private void ensure(int bytes) throws IOException {
+			if (buf.remaining() < bytes)
+				flush();
+		}
+	}
+}
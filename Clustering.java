@@ -11,11 +11,12 @@ public class Clustering {
 	private static final int k = 4;
 	private static final boolean useEuclideanDistance = true;
 	private static Matrix data;
+	private static boolean[] plain; // continuous columns with no missing values
 
 	public static void main(String[] args) throws FileNotFoundException,
 			Exception {
 		data = new Matrix();
-		data.loadArff(fileName);
+		data.load(fileName);
 		if (normalize) {
 			System.out.println("Using normalized data\n");
 			data.normalize();
@@ -30,7 +31,10 @@ public class Clustering {
 			data.shuffle(new Random(seed));
 		}
 
+		setData(data);
+
 		double[][] centroids = new double[k][];
+		boolean[] centroidsComplete = new boolean[k]; // no missing values in plain columns
 		boolean clustersChanged = true;
 		int[] clusters = new int[data.rows()];
 
@@ -43,59 +47,18 @@ public class Clustering {
 			clusters[i] = -1;
 
 		int iteration = 1;
+		int[] numInstances = new int[k];
+		double[] sses = new double[k];
 
 		while (clustersChanged) {
 
-			clustersChanged = false;
-
 			System.out.println("***************");
 			System.out.println("Iteration " + iteration);
 			System.out.println("***************");
 			System.out.println("Computing Centroids:");
+			clustersChanged = computeCentroids(clusters, centroids,
+					centroidsComplete);
 			for (int i = 0; i < k; i++) {
-				int[] numPoints = new int[data.cols()];
-				double[] sum = new double[data.cols()];
-				int[][] histogram = new int[data.cols()][];
-				for (int c = 0; c < histogram.length; c++)
-					histogram[c] = new int[data.valueCount(c)];
-
-				for (int r = 0; r < data.rows(); r++) {
-					if (clusters[r] == i) {
-						for (int c = 0; c < data.cols(); c++) {
-							if (data.get(r, c) != Matrix.MISSING) {
-								numPoints[c]++;
-								if (data.valueCount(c) == 0)
-									sum[c] += data.get(r, c);
-								else
-									histogram[c][(int) data.get(r, c)]++;
-							}
-						}
-					}
-				}
-				for (int c = 0; c < data.cols(); c++) {
-					double lastValue = centroids[i][c];
-					if (data.valueCount(c) == 0) {
-						if (numPoints[c] > 0)
-							centroids[i][c] = sum[c] / numPoints[c];
-						else
-							centroids[i][c] = Matrix.MISSING;
-					} else {
-						int max = 0;
-						int maxIndex = -1;
-						for (int j = 0; j < data.valueCount(c); j++) {
-							if (histogram[c][j] > max) {
-								max = histogram[c][j];
-								maxIndex = j;
-							}
-						}
-						if (maxIndex >= 0)
-							centroids[i][c] = maxIndex;
-						else
-							centroids[i][c] = Matrix.MISSING;
-					}
-					if (centroids[i][c] != lastValue)
-						clustersChanged = true;
-				}
 				System.out.print("Centroid " + i + " = ");
 				for (int c = 0; c < data.cols(); c++) {
 					if (centroids[i][c] == Matrix.MISSING)
@@ -112,37 +75,15 @@ public class Clustering {
 			}
 
 			System.out.println("Making Assignments");
-			double sse = 0;
-			int[] numInstances = new int[k];
-			double[] sses = new double[k];
-
+			double sse = assignClusters(centroids, centroidsComplete, clusters,
+					numInstances, sses);
 			for (int r = 0; r < data.rows(); r++) {
-				double minSquaredDistance = Double.MAX_VALUE;
-				int closestK = -1;
-				for (int i = 0; i < k; i++) {
-					double squaredDistance;
-					if (useEuclideanDistance)
-						squaredDistance = squaredDistance(data.row(r),
-								centroids[i]);
-					else
-						squaredDistance = manhattanDistance(data.row(r),
-								centroids[i])
-								* manhattanDistance(data.row(r), centroids[i]);
-					if (squaredDistance < minSquaredDistance) {
-						minSquaredDistance = squaredDistance;
-						closestK = i;
-					}
-				}
-				clusters[r] = closestK;
-				numInstances[closestK]++;
-				sses[closestK] += minSquaredDistance;
-				sse += minSquaredDistance;
 				if (r % 10 == 0) {
 					if (r > 0)
 						System.out.println();
 					System.out.print("\t");
 				}
-				System.out.print(r + "=" + closestK + " ");
+				System.out.print(r + "=" + clusters[r] + " ");
 			}
 			System.out.println();
 			for (int i = 0; i < k; i++) {
@@ -162,7 +103,8 @@ public class Clustering {
 				if (i == j)
 					continue;
 				double squaredDistance = squaredDistance(centroids[i],
-						centroids[j]);
+						centroids[j], centroidsComplete[i]
+								&& centroidsComplete[j]);
 				if (squaredDistance < minSquaredDistance) {
 					minSquaredDistance = squaredDistance;
 					nearestCluster = j;
@@ -183,10 +125,12 @@ public class Clustering {
 				if (i == j)
 					continue;
 				if (clusters[i] == clusters[j]) {
-					a += Math.sqrt(squaredDistance(data.row(i), data.row(j)));
+					a += Math.sqrt(squaredDistance(data.row(i), data.row(j),
+							true));
 					aCount++;
 				} else if (nearestClusters[clusters[i]] == clusters[j]) {
-					b += Math.sqrt(squaredDistance(data.row(i), data.row(j)));
+					b += Math.sqrt(squaredDistance(data.row(i), data.row(j),
+							true));
 					bCount++;
 				}
 			}
@@ -200,10 +144,95 @@ public class Clustering {
 		System.out.println("Silhouette Coefficient: " + silhouetteCoefficient);
 	}
 
-	private static double squaredDistance(double[] a, double[] b) {
+	// Sets the data to cluster
+	static void setData(Matrix m) {
+		data = m;
+		plain = new boolean[data.cols()];
+		for (int c = 0; c < plain.length; c++)
+			plain[c] = data.valueCount(c) == 0 && !data.hasMissing(c);
+	}
+
+	// Moves each of the centroids to the middle (mean, or most common value
+	// for nominal columns) of the rows assigned to it, and returns true if any
+	// of them moved
+	static boolean computeCentroids(int[] clusters, double[][] centroids,
+			boolean[] centroidsComplete) {
+		boolean clustersChanged = false;
+		for (int i = 0; i < centroids.length; i++) {
+			int clusterSize = 0;
+			for (int r = 0; r < data.rows(); r++) {
+				if (clusters[r] == i)
+					clusterSize++;
+			}
+			int[] clusterRows = new int[clusterSize];
+			for (int r = 0, n = 0; r < data.rows(); r++) {
+				if (clusters[r] == i)
+					clusterRows[n++] = r;
+			}
+			ColumnStats stats = data.view(clusterRows, 0, data.cols())
+					.columnStats();
+			centroidsComplete[i] = clusterSize > 0;
+			for (int c = 0; c < data.cols(); c++) {
+				double lastValue = centroids[i][c];
+				if (stats.count[c] == 0)
+					centroids[i][c] = Matrix.MISSING;
+				else if (data.valueCount(c) == 0)
+					centroids[i][c] = stats.mean(c);
+				else
+					centroids[i][c] = stats.mostCommon(c);
+				if (centroids[i][c] != lastValue)
+					clustersChanged = true;
+			}
+		}
+		return clustersChanged;
+	}
+
+	// Assigns each row to its closest centroid, counting the rows and summing
+	// the squared distances of each cluster into numInstances and sses, and
+	// returns the total squared distance
+	static double assignClusters(double[][] centroids,
+			boolean[] centroidsComplete, int[] clusters, int[] numInstances,
+			double[] sses) {
+		double sse = 0;
+		for (int i = 0; i < centroids.length; i++) {
+			numInstances[i] = 0;
+			sses[i] = 0;
+		}
+		for (int r = 0; r < data.rows(); r++) {
+			double minSquaredDistance = Double.MAX_VALUE;
+			int closestK = -1;
+			for (int i = 0; i < centroids.length; i++) {
+				double squaredDistance;
+				if (useEuclideanDistance)
+					squaredDistance = squaredDistance(data.row(r),
+							centroids[i], centroidsComplete[i]);
+				else
+					squaredDistance = manhattanDistance(data.row(r),
+							centroids[i], centroidsComplete[i])
+							* manhattanDistance(data.row(r), centroids[i],
+									centroidsComplete[i]);
+				if (squaredDistance < minSquaredDistance) {
+					minSquaredDistance = squaredDistance;
+					closestK = i;
+				}
+			}
+			clusters[r] = closestK;
+			numInstances[closestK]++;
+			sses[closestK] += minSquaredDistance;
+			sse += minSquaredDistance;
+		}
+		return sse;
+	}
+
+	// Returns the squared distance between a and b. If complete is true, the
+	// plain columns of both hold no missing values and are not checked.
+	private static double squaredDistance(double[] a, double[] b,
+			boolean complete) {
 		double squaredDistance = 0;
 		for (int c = 0; c < a.length; c++) {
-			if (a[c] == Matrix.MISSING || b[c] == Matrix.MISSING)
+			if (complete && plain[c])
+				squaredDistance += (a[c] - b[c]) * (a[c] - b[c]);
+			else if (a[c] == Matrix.MISSING || b[c] == Matrix.MISSING)
 				squaredDistance++;
 			else {
 				if (data.valueCount(c) == 0)
@@ -215,10 +244,14 @@ public class Clustering {
 		return squaredDistance;
 	}
 
-	private static double manhattanDistance(double[] a, double[] b) {
+	// Returns the Manhattan distance between a and b (see squaredDistance for complete)
+	private static double manhattanDistance(double[] a, double[] b,
+			boolean complete) {
 		double distance = 0;
 		for (int c = 0; c < a.length; c++) {
-			if (a[c] == Matrix.MISSING || b[c] == Matrix.MISSING)
+			if (complete && plain[c])
+				distance += Math.abs(a[c] - b[c]);
+			else if (a[c] == Matrix.MISSING || b[c] == Matrix.MISSING)
 				distance++;
 			else {
 				if (data.valueCount(c) == 0)
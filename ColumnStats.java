@@ -0,0 +1,193 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Statistics for every column of a matrix, gathered in one pass over the rows:
+ * min, max, mean, variance, the number of missing values, and for nominal
+ * columns a histogram of the values. Matrix.columnStats caches these until the
+ * data changes.
+ */
+public class ColumnStats {
+
+	private static final int ROWS_PER_TASK = 4096;
+
+	int rows;
+	final int[] count; // values that are not missing
+	final double[] min; // MISSING if the column has no values
+	final double[] max;
+	final double[] sum;
+	final int[][] histogram; // counts of each nominal value; null for continuous columns
+							// and for columns holding values outside their dictionary
+
+	// Variance is accumulated as sums of (value - shift) and its square, which
+	// stays accurate when the values are far from zero. After finish() m2 holds
+	// the sum of squared deviations from the mean.
+	private final double[] shift;
+	private final double[] shiftedSum;
+	private final double[] m2;
+
+	// Null entries of histogram that would be non-null, were it not for a value
+	// outside the column's dictionary
+	private final boolean[] histogramBroken;
+
+	private ColumnStats(Matrix m, int rows) {
+		int cols = m.cols();
+		this.rows = rows;
+		count = new int[cols];
+		min = new double[cols];
+		max = new double[cols];
+		sum = new double[cols];
+		shift = new double[cols];
+		shiftedSum = new double[cols];
+		m2 = new double[cols];
+		histogram = new int[cols][];
+		histogramBroken = new boolean[cols];
+		for (int c = 0; c < cols; c++) {
+			min[c] = Matrix.MISSING;
+			max[c] = Matrix.MISSING;
+			if (m.valueCount(c) > 0)
+				histogram[c] = new int[m.valueCount(c)];
+		}
+	}
+
+	// Computes the statistics of m, splitting the rows across the common
+	// fork-join pool if parallel is true
+	static ColumnStats compute(Matrix m, boolean parallel) {
+		if (parallel && m.rows() > ROWS_PER_TASK)
+			return ForkJoinPool.commonPool().invoke(new Task(m, 0, m.rows()));
+		ColumnStats stats = new ColumnStats(m, m.rows());
+		stats.accumulate(m, 0, m.rows());
+		stats.finish();
+		return stats;
+	}
+
+	// Returns the mean of the values in the column
+	double mean(int c) { return sum[c] / count[c]; }
+
+	// Returns the (population) variance of the values in the column
+	double variance(int c) { return m2[c] / count[c]; }
+
+	// Returns the number of missing values in the column
+	int missingCount(int c) { return rows - count[c]; }
+
+	// Returns true if mostCommon can be used for the column
+	boolean hasHistogram(int c) { return histogram[c] != null; }
+
+	// Returns the most frequent value of a nominal column (the lowest one on a
+	// tie), or MISSING if the column has no values
+	double mostCommon(int c) {
+		int maxCount = 0;
+		double val = Matrix.MISSING;
+		for (int v = 0; v < histogram[c].length; v++) {
+			if (histogram[c][v] > maxCount) {
+				maxCount = histogram[c][v];
+				val = v;
+			}
+		}
+		return val;
+	}
+
+	private void accumulate(Matrix m, int from, int to) {
+		int cols = count.length;
+		double[] row = new double[cols];
+		for (int r = from; r < to; r++) {
+			m.copyRow(r, row);
+			for (int c = 0; c < cols; c++) {
+				double v = row[c];
+				if (v == Matrix.MISSING)
+					continue;
+				if (count[c] == 0) {
+					min[c] = v;
+					max[c] = v;
+					shift[c] = v;
+				} else if (v < min[c])
+					min[c] = v;
+				else if (v > max[c])
+					max[c] = v;
+				count[c]++;
+				sum[c] += v;
+				double d = v - shift[c];
+				shiftedSum[c] += d;
+				m2[c] += d * d;
+				int[] h = histogram[c];
+				if (h != null) {
+					int index = (int) v;
+					if (index == v && index >= 0 && index < h.length)
+						h[index]++;
+					else {
+						histogram[c] = null;
+						histogramBroken[c] = true;
+					}
+				}
+			}
+		}
+	}
+
+	// Turns the shifted sums into sums of squared deviations from the mean
+	private void finish() {
+		for (int c = 0; c < count.length; c++) {
+			if (count[c] > 0)
+				m2[c] -= shiftedSum[c] * shiftedSum[c] / count[c];
+			shiftedSum[c] = 0;
+			shift[c] = 0;
+		}
+	}
+
+	// Adds the statistics of the rows that follow this one's (both finished)
+	private void merge(ColumnStats that) {
+		rows += that.rows;
+		for (int c = 0; c < count.length; c++) {
+			if (that.count[c] == 0)
+				continue;
+			if (count[c] == 0) {
+				min[c] = that.min[c];
+				max[c] = that.max[c];
+				m2[c] = that.m2[c];
+			} else {
+				min[c] = Math.min(min[c], that.min[c]);
+				max[c] = Math.max(max[c], that.max[c]);
+				double delta = that.sum[c] / that.count[c] - sum[c] / count[c];
+				m2[c] += that.m2[c] + delta * delta * count[c] * that.count[c]
+						/ (count[c] + that.count[c]);
+			}
+			count[c] += that.count[c];
+			sum[c] += that.sum[c];
+			if (histogram[c] != null && that.histogram[c] != null) {
+				for (int v = 0; v < histogram[c].length; v++)
+					histogram[c][v] += that.histogram[c][v];
+			} else if (histogram[c] != null || that.histogramBroken[c]) {
+				histogram[c] = null;
+				histogramBroken[c] = true;
+			}
+		}
+	}
+
+	private static class Task extends RecursiveTask<ColumnStats> {
+		private static final long serialVersionUID = 1L;
+
+		private final Matrix m;
+		private final int from;
+		private final int to;
+
+		Task(Matrix m, int from, int to) {
+			this.m = m;
+			this.from = from;
+			this.to = to;
+		}
+
+		protected ColumnStats compute() {
+			if (to - from <= ROWS_PER_TASK) {
+				ColumnStats stats = new ColumnStats(m, to - from);
+				stats.accumulate(m, from, to);
+				stats.finish();
+				return stats;
+			}
+			int mid = (from + to) >>> 1;
+			Task right = new Task(m, mid, to);
+			right.fork();
+			ColumnStats stats = new Task(m, from, mid).compute();
+			stats.merge(right.join());
+			return stats;
+		}
+	}
+}
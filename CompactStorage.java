@@ -0,0 +1,167 @@
+import java.util.Arrays;
+
+/**
+ * Keeps each column in the smallest array type that holds it: a float[] for
+ * continuous columns, and a byte[] or short[] of value codes for nominal
+ * columns with fewer than 255 or 65,535 values. Cells are widened to double
+ * when read. Continuous values keep only float precision (about 7
+ * significant digits), which is the price of the smaller footprint.
+ *
+ * Missing cells are NaN in a float column and the largest code in a byte or
+ * short column. A value a nominal column cannot hold (a fraction, say) turns
+ * that column into a float column.
+ */
+public class CompactStorage extends MatrixStorage {
+
+	private static final int BYTE_MISSING = 0xff;
+	private static final int SHORT_MISSING = 0xffff;
+
+	private final int cols;
+	private int rows;
+	private int capacity; // rows the arrays have room for
+
+	// Exactly one of these is non-null for each column
+	private final float[][] floats;
+	private final byte[][] bytes;
+	private final short[][] shorts;
+
+	// Creates rows x cols of zeros. valueCounts holds the number of nominal
+	// values of each column (0 for continuous ones), or is null if all are continuous.
+	public CompactStorage(int rows, int cols, int[] valueCounts) {
+		this.cols = cols;
+		this.rows = rows;
+		this.capacity = Math.max(rows, 16);
+		floats = new float[cols][];
+		bytes = new byte[cols][];
+		shorts = new short[cols][];
+		for (int c = 0; c < cols; c++) {
+			int values = valueCounts == null ? 0 : valueCounts[c];
+			if (values > 0 && values < BYTE_MISSING)
+				bytes[c] = new byte[capacity];
+			else if (values > 0 && values < SHORT_MISSING)
+				shorts[c] = new short[capacity];
+			else
+				floats[c] = new float[capacity];
+		}
+	}
+
+	int rows() { return rows; }
+
+	int cols() { return cols; }
+
+	double get(int r, int c) {
+		float[] f = floats[c];
+		if (f != null) {
+			float v = f[r];
+			return v != v ? Matrix.MISSING : v;
+		}
+		int code = bytes[c] != null ? bytes[c][r] & 0xff : shorts[c][r] & 0xffff;
+		if (code == (bytes[c] != null ? BYTE_MISSING : SHORT_MISSING))
+			return Matrix.MISSING;
+		return code;
+	}
+
+	void set(int r, int c, double v) {
+		if (!fits(c, v))
+			widen(c);
+		put(r, c, v);
+		modCount++;
+	}
+
+	void addRow(double[] row) {
+		if (rows == capacity)
+			grow(capacity * 2);
+		for (int c = 0; c < cols; c++) {
+			if (!fits(c, row[c]))
+				widen(c);
+			put(rows, c, row[c]);
+		}
+		rows++;
+		modCount++;
+	}
+
+	void swapRows(int a, int b) {
+		for (int c = 0; c < cols; c++) {
+			if (floats[c] != null) {
+				float tmp = floats[c][a];
+				floats[c][a] = floats[c][b];
+				floats[c][b] = tmp;
+			} else if (bytes[c] != null) {
+				byte tmp = bytes[c][a];
+				bytes[c][a] = bytes[c][b];
+				bytes[c][b] = tmp;
+			} else {
+				short tmp = shorts[c][a];
+				shorts[c][a] = shorts[c][b];
+				shorts[c][b] = tmp;
+			}
+		}
+		modCount++;
+	}
+
+	void copyRow(int r, double[] dest) {
+		for (int c = 0; c < cols; c++)
+			dest[c] = get(r, c);
+	}
+
+	void copyColumn(int c, double[] dest) {
+		float[] f = floats[c];
+		if (f == null) {
+			super.copyColumn(c, dest);
+			return;
+		}
+		for (int r = 0; r < rows; r++) {
+			float v = f[r];
+			dest[r] = v != v ? Matrix.MISSING : v;
+		}
+	}
+
+	// Returns the number of bytes the cells take up
+	long cellBytes() {
+		long total = 0;
+		for (int c = 0; c < cols; c++)
+			total += (long) capacity * (floats[c] != null ? 4 : bytes[c] != null ? 1 : 2);
+		return total;
+	}
+
+	// Returns true if column c can hold v as it is
+	private boolean fits(int c, double v) {
+		if (floats[c] != null || v == Matrix.MISSING)
+			return true;
+		int limit = bytes[c] != null ? BYTE_MISSING : SHORT_MISSING;
+		return v >= 0 && v < limit && v == (int) v;
+	}
+
+	private void put(int r, int c, double v) {
+		if (floats[c] != null)
+			floats[c][r] = v == Matrix.MISSING ? Float.NaN : (float) v;
+		else if (bytes[c] != null)
+			bytes[c][r] = (byte) (v == Matrix.MISSING ? BYTE_MISSING : (int) v);
+		else
+			shorts[c][r] = (short) (v == Matrix.MISSING ? SHORT_MISSING : (int) v);
+	}
+
+	// Turns a code column into a float column
+	private void widen(int c) {
+		float[] f = new float[capacity];
+		for (int r = 0; r < rows; r++) {
+			double v = get(r, c);
+			f[r] = v == Matrix.MISSING ? Float.NaN : (float) v;
+		}
+		floats[c] = f;
+		bytes[c] = null;
+		shorts[c] = null;
+	}
+
+	private void grow(int newCapacity) {
+		for (int c = 0; c < cols; c++) {
+			if (floats[c] != null)
+				floats[c] = Arrays.copyOf(floats[c], newCapacity);
+			else if (bytes[c] != null)
+				bytes[c] = Arrays.copyOf(bytes[c], newCapacity);
+			else
+				shorts[c] = Arrays.copyOf(shorts[c], newCapacity);
+		}
+		capacity = newCapacity;
+	}
+}
@@ -0,0 +1,229 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Runs repeated k-fold cross-validation, optionally stratified on the label
+ * (the last column). Each rep shuffles the rows with its own Random and each
+ * fold trains a new learner with its own Random. All the seeds are split off
+ * one SplittableRandom before anything runs, so the results depend only on the
+ * seed and not on how the folds are scheduled. In parallel mode the folds of
+ * every rep are tasks on the common fork-join pool.
+ */
+public class CrossValidator {
+
+	// Two-sided 95% quantiles of Student's t distribution for 1 to 30 degrees
+	// of freedom; the normal quantile is used beyond that
+	private static final double[] T_95 = { 12.706, 4.303, 3.182, 2.776, 2.571,
+			2.447, 2.365, 2.306, 2.262, 2.228, 2.201, 2.179, 2.160, 2.145, 2.131,
+			2.120, 2.110, 2.101, 2.093, 2.086, 2.080, 2.074, 2.069, 2.064, 2.060,
+			2.056, 2.052, 2.048, 2.045, 2.042 };
+
+	// Makes the learner for one fold
+	public interface LearnerFactory {
+		SupervisedLearner newLearner(Random rand) throws Exception;
+	}
+
+	private final Matrix data;
+	private final int folds;
+	private final long seed;
+	private int reps = 1;
+	private boolean stratified;
+	private boolean parallel;
+	private List<Fold> results;
+
+	public CrossValidator(Matrix data, int folds, long seed) {
+		if (folds <= 0)
+			throw new IllegalArgumentException("Number of folds must be greater than 0");
+		this.data = data;
+		this.folds = folds;
+		this.seed = seed;
+	}
+
+	public void setReps(int reps) {
+		if (reps <= 0)
+			throw new IllegalArgumentException("Number of reps must be greater than 0");
+		this.reps = reps;
+	}
+
+	// If true, each fold gets about the same share of every label value
+	public void setStratified(boolean stratified) {
+		this.stratified = stratified;
+	}
+
+	// If true, the folds run at once and measure accuracy in parallel
+	public void setParallel(boolean parallel) {
+		this.parallel = parallel;
+	}
+
+	public int folds() { return folds; }
+
+	public int reps() { return reps; }
+
+	// Trains and scores every fold of every rep
+	public void run(LearnerFactory factory) throws Exception {
+		SplittableRandom random = new SplittableRandom(seed);
+		List<Fold> tasks = new ArrayList<Fold>();
+		for (int rep = 0; rep < reps; rep++) {
+			SplittableRandom repRandom = random.split();
+			int[] order = data.permutation(new Random(repRandom.nextLong()));
+			int[] foldOf = assignFolds(order);
+			for (int fold = 0; fold < folds; fold++)
+				tasks.add(new Fold(factory, repRandom.split().nextLong(), order, foldOf, fold));
+		}
+		if (parallel)
+			ForkJoinTask.invokeAll(tasks);
+		else {
+			for (Fold task : tasks)
+				task.invoke();
+		}
+		for (Fold task : tasks) {
+			if (task.error != null)
+				throw task.error;
+		}
+		results = tasks;
+	}
+
+	// The results of the last run, one per fold, rep after rep
+
+	public double[] accuracies() {
+		double[] values = new double[results.size()];
+		for (int i = 0; i < values.length; i++)
+			values[i] = results.get(i).accuracy;
+		return values;
+	}
+
+	public double[] trainAccuracies() {
+		double[] values = new double[results.size()];
+		for (int i = 0; i < values.length; i++)
+			values[i] = results.get(i).trainAccuracy;
+		return values;
+	}
+
+	// In seconds
+	public double[] trainTimes() {
+		double[] values = new double[results.size()];
+		for (int i = 0; i < values.length; i++)
+			values[i] = results.get(i).trainTime / 1000.0;
+		return values;
+	}
+
+	public static double mean(double[] values) {
+		double sum = 0;
+		for (int i = 0; i < values.length; i++)
+			sum += values[i];
+		return sum / values.length;
+	}
+
+	// Returns the sample standard deviation, or 0 for fewer than two values
+	public static double standardDeviation(double[] values) {
+		if (values.length < 2)
+			return 0;
+		double mean = mean(values);
+		double sum = 0;
+		for (int i = 0; i < values.length; i++)
+			sum += (values[i] - mean) * (values[i] - mean);
+		return Math.sqrt(sum / (values.length - 1));
+	}
+
+	// Returns the half-width of the 95% confidence interval of the mean. Folds
+	// share training rows, so this is a guide rather than an exact interval.
+	public static double confidence95(double[] values) {
+		if (values.length < 2)
+			return 0;
+		int df = values.length - 1;
+		double t = df <= T_95.length ? T_95[df - 1] : 1.96;
+		return t * standardDeviation(values) / Math.sqrt(values.length);
+	}
+
+	// Returns the fold of each row. Without stratification fold i is the i-th
+	// block of order; with it the rows are sorted (stably) by label and dealt
+	// out to the folds in turn.
+	private int[] assignFolds(final int[] order) {
+		int rows = data.rows();
+		int[] foldOf = new int[rows];
+		if (!stratified) {
+			for (int i = 0; i < folds; i++) {
+				for (int p = i * rows / folds; p < (i + 1) * rows / folds; p++)
+					foldOf[order[p]] = i;
+			}
+			return foldOf;
+		}
+		final int labelCol = data.cols() - 1;
+		Integer[] sorted = new Integer[rows];
+		for (int p = 0; p < rows; p++)
+			sorted[p] = order[p];
+		Arrays.sort(sorted, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Double.compare(data.get(a, labelCol), data.get(b, labelCol));
+			}
+		});
+		for (int p = 0; p < rows; p++)
+			foldOf[sorted[p]] = p % folds;
+		return foldOf;
+	}
+
+	/**
+	 * One fold of one rep: trains a new learner on the rows of the other folds
+	 * and measures its accuracy on the rows of this one
+	 */
+	private class Fold extends RecursiveTask<Void> {
+		private static final long serialVersionUID = 1L;
+
+		private final LearnerFactory factory;
+		private final long seed;
+		private final int[] order;
+		private final int[] foldOf;
+		private final int fold;
+		double trainTime; // in milliseconds
+		double trainAccuracy;
+		double accuracy;
+		Exception error;
+
+		Fold(LearnerFactory factory, long seed, int[] order, int[] foldOf, int fold) {
+			this.factory = factory;
+			this.seed = seed;
+			this.order = order;
+			this.foldOf = foldOf;
+			this.fold = fold;
+		}
+
+		protected Void compute() {
+			try {
+				int testCount = 0;
+				for (int r = 0; r < foldOf.length; r++) {
+					if (foldOf[r] == fold)
+						testCount++;
+				}
+				int[] trainRows = new int[order.length - testCount];
+				int[] testRows = new int[testCount];
+				int trainCount = 0;
+				testCount = 0;
+				for (int p = 0; p < order.length; p++) {
+					if (foldOf[order[p]] == fold)
+						testRows[testCount++] = order[p];
+					else
+						trainRows[trainCount++] = order[p];
+				}
+				Matrix trainFeatures = data.view(trainRows, 0, data.cols() - 1);
+				Matrix trainLabels = data.view(trainRows, data.cols() - 1, 1);
+				Matrix testFeatures = data.view(testRows, 0, data.cols() - 1);
+				Matrix testLabels = data.view(testRows, data.cols() - 1, 1);
+				SupervisedLearner learner = factory.newLearner(new Random(seed));
+				double startTime = System.currentTimeMillis();
+				learner.train(trainFeatures, trainLabels);
+				trainTime = System.currentTimeMillis() - startTime;
+				trainAccuracy = learner.measureAccuracy(trainFeatures, trainLabels, null, parallel);
+				accuracy = learner.measureAccuracy(testFeatures, testLabels, null, parallel);
+			} catch (Exception e) {
+				error = e;
+			}
+			return null;
+		}
+	}
+}
@@ -1,3 +1,4 @@
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -19,8 +20,11 @@ public class DecisionTree extends SupervisedLearner {
 	private Matrix labelsMatrix;
 	private List<double[]> features;
 	private List<double[]> labels;
+	private boolean[] hasMissing; // columns of the training features with missing values
 	private int[] skipArray;
 	private int category = -1;
+	private int rowCount; // training rows that reached this node
+	private int missingCount; // how many of them are missing featureIndex
 
 	public DecisionTree(Random random) {
 		this.random = random;
@@ -32,28 +36,32 @@ public class DecisionTree extends SupervisedLearner {
 		Matrix validationLabels = null;
 		Matrix trainingLabels = null;
 		if (prune) {
-			features.shuffle(random, labels);
 			int validationSetNumber = (int) (validationSetSize * features
 					.rows());
-			validationFeatures = new Matrix(features, 0, 0,
-					validationSetNumber, features.cols());
-			trainingFeatures = new Matrix(features, validationSetNumber, 0,
-					features.rows() - validationSetNumber, features.cols());
-			validationLabels = new Matrix(labels, 0, 0, validationSetNumber,
-					labels.cols());
-			trainingLabels = new Matrix(labels, validationSetNumber, 0,
-					labels.rows() - validationSetNumber, labels.cols());
+			int[] order = features.permutation(random);
+			int[] validationRows = Arrays.copyOfRange(order, 0,
+					validationSetNumber);
+			int[] trainingRows = Arrays.copyOfRange(order,
+					validationSetNumber, order.length);
+			validationFeatures = features.view(validationRows, 0,
+					features.cols());
+			trainingFeatures = features.view(trainingRows, 0, features.cols());
+			validationLabels = labels.view(validationRows, 0, labels.cols());
+			trainingLabels = labels.view(trainingRows, 0, labels.cols());
 
 			featuresMatrix = trainingFeatures;
 			labelsMatrix = trainingLabels;
-			this.features = trainingFeatures.m_data;
-			this.labels = trainingLabels.m_data;
+			this.features = rowList(trainingFeatures);
+			this.labels = rowList(trainingLabels);
 		} else {
 			featuresMatrix = features;
 			labelsMatrix = labels;
-			this.features = features.m_data;
-			this.labels = labels.m_data;
+			this.features = rowList(features);
+			this.labels = rowList(labels);
 		}
+		hasMissing = new boolean[featuresMatrix.cols()];
+		for (int i = 0; i < hasMissing.length; i++)
+			hasMissing[i] = featuresMatrix.hasMissing(i);
 		children = new HashMap<>();
 		skipArray = new int[] {};
 		visit();
@@ -69,12 +77,21 @@ public class DecisionTree extends SupervisedLearner {
 		}
 	}
 
+	private static List<double[]> rowList(Matrix matrix) {
+		List<double[]> rows = new ArrayList<>(matrix.rows());
+		for (int i = 0; i < matrix.rows(); i++)
+			rows.add(matrix.row(i));
+		return rows;
+	}
+
 	public double getAccuracy(Matrix features, Matrix labels) throws Exception {
 		double accuracy = 0;
 		double[] predictions = new double[labels.cols()];
+		double[] row = new double[features.cols()];
 
 		for (int i = 0; i < features.rows(); i++) {
-			predict(features.row(i), predictions);
+			features.copyRow(i, row);
+			predict(row, predictions);
 			if (predictions[0] == labels.get(i, 0))
 				accuracy++;
 		}
@@ -122,6 +139,7 @@ public class DecisionTree extends SupervisedLearner {
 
 	public void visit() {
 
+		rowCount = labels.size();
 		double[] histo = new double[labelsMatrix.valueCount(0)];
 		for (int i = 0; i < labels.size(); i++) {
 			histo[(int) labels.get(i)[0]]++;
@@ -139,6 +157,12 @@ public class DecisionTree extends SupervisedLearner {
 			category = maxIndex;
 		else {
 			chooseFeature();
+			if (hasMissing[featureIndex]) {
+				for (int i = 0; i < features.size(); i++) {
+					if (features.get(i)[featureIndex] == Matrix.MISSING)
+						missingCount++;
+				}
+			}
 			for (int i = 0; i < featuresMatrix.valueCount(featureIndex); i++) {
 				addChild(i);
 			}
@@ -150,7 +174,35 @@ public class DecisionTree extends SupervisedLearner {
 	}
 
 	public void predict(double[] features, double[] labels) throws Exception {
-		double[] probabilities = getCategoryProbabilities(features, labels);
+		labels[0] = mostProbable(getCategoryProbabilities(features, labels));
+	}
+
+	// Walks each row down the tree without building probability arrays, except
+	// below a node that has no child for the row's value
+	public void predictBatch(Matrix features, double[] out, int labelCount)
+			throws Exception {
+		double[] row = new double[features.cols()];
+		double[] labels = new double[labelCount];
+		for (int r = 0; r < features.rows(); r++) {
+			features.copyRow(r, row);
+			DecisionTree node = this;
+			while (node.category < 0) {
+				DecisionTree child = node.children
+						.get((int) row[node.featureIndex]);
+				if (child == null)
+					break;
+				node = child;
+			}
+			if (node.category >= 0)
+				out[r * labelCount] = node.category;
+			else
+				out[r * labelCount] = mostProbable(node
+						.getCategoryProbabilities(row, labels));
+		}
+	}
+
+	// Returns the index of the highest probability, or -1 if they are all 0
+	private static double mostProbable(double[] probabilities) {
 		double max = 0;
 		double maxIndex = -1;
 		for (int i = 0; i < probabilities.length; i++) {
@@ -159,8 +211,38 @@ public class DecisionTree extends SupervisedLearner {
 				maxIndex = i;
 			}
 		}
+		return maxIndex;
+	}
 
-		labels[0] = maxIndex;
+	// Writes the tree, node by node, depth first
+	void writeModel(ModelFile.Writer out) throws IOException {
+		out.putInt(category);
+		out.putInt(featureIndex);
+		out.putInt(rowCount);
+		out.putInt(missingCount);
+		out.putInt(children.size());
+		for (Map.Entry<Integer, DecisionTree> child : children.entrySet()) {
+			out.putInt(child.getKey());
+			child.getValue().writeModel(out);
+		}
+	}
+
+	void readModel(ModelFile.Reader in, Matrix features, Matrix labels)
+			throws Exception {
+		featuresMatrix = features;
+		labelsMatrix = labels;
+		category = in.getInt();
+		featureIndex = in.getInt();
+		rowCount = in.getInt();
+		missingCount = in.getInt();
+		children = new HashMap<>();
+		int childCount = in.getInt();
+		for (int i = 0; i < childCount; i++) {
+			int value = in.getInt();
+			DecisionTree child = new DecisionTree(random);
+			child.readModel(in, features, labels);
+			children.put(value, child);
+		}
 	}
 
 	public double[] getCategoryProbabilities(double[] features, double[] labels) {
@@ -173,21 +255,14 @@ public class DecisionTree extends SupervisedLearner {
 				probabilities = child
 						.getCategoryProbabilities(features, labels);
 			} else {
-
-				int missingValues = 0;
-				for (int i = 0; i < this.features.size(); i++) {
-					if (this.features.get(i)[featureIndex] == Matrix.MISSING)
-						missingValues++;
-				}
-
 				double[] childProbabilities = null;
 				for (Integer i : children.keySet()) {
 					childProbabilities = children.get(i)
 							.getCategoryProbabilities(features, labels);
 					for (int j = 0; j < childProbabilities.length; j++)
 						probabilities[j] += childProbabilities[j]
-								* children.get(i).features.size()
-								/ (this.features.size() - missingValues);
+								* children.get(i).rowCount
+								/ (rowCount - missingCount);
 				}
 			}
 		}
@@ -201,12 +276,26 @@ public class DecisionTree extends SupervisedLearner {
 		child.labels = new ArrayList<>();
 		child.featuresMatrix = featuresMatrix;
 		child.labelsMatrix = labelsMatrix;
+		child.hasMissing = hasMissing;
 		child.children = new HashMap<>();
 		child.skipArray = new int[skipArray.length + 1];
 		for (int i = 0; i < skipArray.length; i++)
 			child.skipArray[i] = skipArray[i];
 		child.skipArray[child.skipArray.length - 1] = featureIndex;
 
+		if (!hasMissing[featureIndex]) {
+			for (int i = 0; i < features.size(); i++) {
+				if (features.get(i)[featureIndex] == value) {
+					child.features.add(features.get(i));
+					child.labels.add(labels.get(i));
+				}
+			}
+			if (child.features.size() > 0)
+				children.put(value, child);
+			return;
+		}
+
+		// Rows missing the value go to the child for the most common value
 		double[] histo = new double[featuresMatrix.valueCount(featureIndex)];
 		for (int i = 0; i < features.size(); i++) {
 			if (features.get(i)[featureIndex] < Matrix.MISSING)
@@ -1,3 +1,6 @@
+import java.io.IOException;
+import java.util.Arrays;
+
 public class InstanceBasedLearner extends SupervisedLearner {
 
 	private int neighborCount = 1;
@@ -5,30 +8,17 @@ public class InstanceBasedLearner extends SupervisedLearner {
 	private boolean weightDistances = true;
 	private Matrix m_features;
 	private Matrix m_labels;
-	private double[] minimums;
-	private double[] maximums;
+	private Normalizer normalizer;
+	private boolean plainFeatures; // all continuous, with no missing values
 	private boolean useHVDM = true;
 	private double[][][] probabilities;
-
-	private double[] normalize(double[] values, Matrix features) {
-		double[] result = new double[values.length];
-		for (int i = 0; i < values.length; i++) {
-			if (features.valueCount(i) == 0 && values[i] != Matrix.MISSING)
-				result[i] = (values[i] - minimums[i])
-						/ (maximums[i] - minimums[i]);
-			else
-				result[i] = values[i];
-		}
-		return result;
-	}
+	private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>();
 
 	@Override
 	public void train(Matrix features, Matrix labels) throws Exception {
 		m_features = new Matrix(features, 0, 0, features.rows(),
 				features.cols());
 		m_labels = new Matrix(labels, 0, 0, labels.rows(), labels.cols());
-		minimums = new double[features.cols()];
-		maximums = new double[features.cols()];
 		if (m_labels.valueCount(0) == 0)
 			useHVDM = false;
 		if (useHVDM) {
@@ -40,15 +30,11 @@ public class InstanceBasedLearner extends SupervisedLearner {
 			}
 		}
 
-		for (int i = 0; i < features.rows(); i++) {
-			for (int j = 0; j < features.cols(); j++) {
-				if (features.get(i, j) == Matrix.MISSING)
-					continue;
-				if (features.get(i, j) < minimums[j])
-					minimums[j] = features.row(i)[j];
-				if (features.get(i, j) > maximums[j])
-					maximums[j] = features.row(i)[j];
-				if (useHVDM) {
+		if (useHVDM) {
+			for (int i = 0; i < features.rows(); i++) {
+				for (int j = 0; j < features.cols(); j++) {
+					if (features.get(i, j) == Matrix.MISSING)
+						continue;
 					if (m_features.valueCount(j) > 0) {
 						probabilities[j][(int) features.get(i, j)][(int) labels
 								.get(i, 0)]++;
@@ -57,13 +43,16 @@ public class InstanceBasedLearner extends SupervisedLearner {
 			}
 		}
 
+		// The ranges always include 0
 		if (normalizeFeatures) {
-			for (int i = 0; i < m_features.rows(); i++)
-				for (int j = 0; j < m_features.cols(); j++)
-					if (m_features.valueCount(j) == 0
-							&& features.get(i, j) != Matrix.MISSING)
-						m_features.set(i, j, (features.get(i, j) - minimums[j])
-								/ (maximums[j] - minimums[j]));
+			normalizer = new Normalizer(features, true);
+			normalizer.apply(m_features);
+		}
+
+		plainFeatures = !m_features.isSparse();
+		for (int j = 0; j < m_features.cols(); j++) {
+			if (m_features.valueCount(j) > 0 || m_features.hasMissing(j))
+				plainFeatures = false;
 		}
 
 		if (useHVDM) {
@@ -84,68 +73,283 @@ public class InstanceBasedLearner extends SupervisedLearner {
 		}
 	}
 
+	// Writes the settings, the HVDM tables, the normalizer and the stored rows,
+	// which readModel maps instead of reading
+	void writeModel(ModelFile.Writer out) throws IOException {
+		out.putInt(neighborCount);
+		out.putBoolean(weightDistances);
+		out.putBoolean(plainFeatures);
+		out.putBoolean(useHVDM);
+		if (useHVDM) {
+			out.putInt(probabilities.length);
+			for (int i = 0; i < probabilities.length; i++) {
+				out.putInt(probabilities[i].length);
+				for (int j = 0; j < probabilities[i].length; j++)
+					out.putDoubles(probabilities[i][j]);
+			}
+		}
+		out.putBoolean(normalizeFeatures);
+		if (normalizeFeatures)
+			normalizer.write(out);
+		out.putMatrix(m_features);
+		out.putMatrix(m_labels);
+	}
+
+	void readModel(ModelFile.Reader in, Matrix features, Matrix labels)
+			throws Exception {
+		neighborCount = in.getInt();
+		weightDistances = in.getBoolean();
+		plainFeatures = in.getBoolean();
+		useHVDM = in.getBoolean();
+		if (useHVDM) {
+			probabilities = new double[in.getInt()][][];
+			for (int i = 0; i < probabilities.length; i++) {
+				probabilities[i] = new double[in.getInt()][];
+				for (int j = 0; j < probabilities[i].length; j++)
+					probabilities[i][j] = in.getDoubles();
+			}
+		}
+		normalizeFeatures = in.getBoolean();
+		if (normalizeFeatures)
+			normalizer = new Normalizer(in);
+		m_features = in.getMatrix(features);
+		m_labels = in.getMatrix(labels);
+	}
+
+	// Returns the squared distance contribution of column j between a stored
+	// (normalized) value and a query value
+	private double cellDistance(int j, double stored, double query) {
+		if (stored == Matrix.MISSING || query == Matrix.MISSING)
+			return 1;
+		if (m_features.valueCount(j) == 0)
+			return (stored - query) * (stored - query);
+		if (!useHVDM)
+			return stored != query ? 1 : 0;
+		double distance = 0;
+		for (int k = 0; k < m_labels.valueCount(0); k++)
+			distance += (probabilities[j][(int) stored][k] - probabilities[j][(int) query][k])
+					* (probabilities[j][(int) stored][k] - probabilities[j][(int) query][k]);
+		return distance;
+	}
+
 	@Override
 	public void predict(double[] features, double[] labels) throws Exception {
+		Scratch scratch = scratch();
 
-		double[] normalizedFeatures = null;
-		if (normalizeFeatures)
-			normalizedFeatures = normalize(features, m_features);
-		else
-			normalizedFeatures = features;
-
-		double[] squaredDistances = new double[m_features.rows()];
-		double[] topSquaredDistances = new double[neighborCount];
-		for (int i = 0; i < topSquaredDistances.length; i++)
-			topSquaredDistances[i] = Double.MAX_VALUE;
-		int[] topInstances = new int[neighborCount];
-		for (int i = 0; i < topInstances.length; i++)
-			topInstances[i] = -1;
-
-		for (int i = 0; i < squaredDistances.length; i++) {
-			for (int j = 0; j < normalizedFeatures.length; j++) {
-				if (m_features.get(i, j) == Matrix.MISSING
-						|| normalizedFeatures[j] == Matrix.MISSING)
-					squaredDistances[i]++;
-				else if (m_features.valueCount(j) == 0)
-					squaredDistances[i] += (m_features.get(i, j) - normalizedFeatures[j])
-							* (m_features.get(i, j) - normalizedFeatures[j]);
-				else {
-					if (useHVDM) {
-						for (int k = 0; k < m_labels.valueCount(0); k++) {
-							squaredDistances[i] += (probabilities[j][(int) m_features
-									.get(i, j)][k] - probabilities[j][(int) normalizedFeatures[j]][k])
-									* (probabilities[j][(int) m_features.get(i,
-											j)][k] - probabilities[j][(int) normalizedFeatures[j]][k]);
-						}
-					} else if (m_features.get(i, j) != normalizedFeatures[j])
-						squaredDistances[i]++;
+		double[] normalizedFeatures = features;
+		if (normalizeFeatures) {
+			normalizedFeatures = scratch.normalizedFeatures;
+			normalizer.apply(features, normalizedFeatures);
+		}
+
+		double[] topSquaredDistances = scratch.topSquaredDistances;
+		Arrays.fill(topSquaredDistances, Double.MAX_VALUE);
+		int[] topInstances = scratch.topInstances;
+		Arrays.fill(topInstances, -1);
+
+		// With sparse training rows, start from the distance to an all-zero row
+		// and correct it for each non-zero cell, instead of visiting every column
+		int[] indices = null;
+		double[] values = null;
+		double[] zeroDistances = null;
+		double zeroDistance = 0;
+		boolean plain = plainFeatures;
+		for (int j = 0; j < normalizedFeatures.length && plain; j++) {
+			if (normalizedFeatures[j] == Matrix.MISSING)
+				plain = false;
+		}
+		double[] row = scratch.row;
+		if (m_features.isSparse()) {
+			indices = scratch.indices;
+			values = scratch.values;
+			zeroDistances = scratch.zeroDistances;
+			for (int j = 0; j < zeroDistances.length; j++) {
+				zeroDistances[j] = cellDistance(j, 0, normalizedFeatures[j]);
+				zeroDistance += zeroDistances[j];
+			}
+		}
+
+		for (int i = 0; i < m_features.rows(); i++) {
+			double squaredDistance = 0;
+			if (indices != null) {
+				int nnz = m_features.copySparseRow(i, indices, values);
+				squaredDistance = zeroDistance;
+				for (int k = 0; k < nnz; k++) {
+					int j = indices[k];
+					squaredDistance += cellDistance(j, values[k],
+							normalizedFeatures[j]) - zeroDistances[j];
+				}
+			} else if (plain) {
+				// Nothing can be missing or nominal, so no checks are needed
+				m_features.copyRow(i, row);
+				for (int j = 0; j < row.length; j++) {
+					double d = row[j] - normalizedFeatures[j];
+					squaredDistance += d * d;
+				}
+			} else {
+				for (int j = 0; j < normalizedFeatures.length; j++) {
+					if (m_features.get(i, j) == Matrix.MISSING
+							|| normalizedFeatures[j] == Matrix.MISSING)
+						squaredDistance++;
+					else if (m_features.valueCount(j) == 0)
+						squaredDistance += (m_features.get(i, j) - normalizedFeatures[j])
+								* (m_features.get(i, j) - normalizedFeatures[j]);
+					else {
+						if (useHVDM) {
+							for (int k = 0; k < m_labels.valueCount(0); k++) {
+								squaredDistance += (probabilities[j][(int) m_features
+										.get(i, j)][k] - probabilities[j][(int) normalizedFeatures[j]][k])
+										* (probabilities[j][(int) m_features.get(i,
+												j)][k] - probabilities[j][(int) normalizedFeatures[j]][k]);
+							}
+						} else if (m_features.get(i, j) != normalizedFeatures[j])
+							squaredDistance++;
+					}
 				}
 			}
 
-			for (int j = 0; j < neighborCount; j++) {
-				if (squaredDistances[i] < topSquaredDistances[j]) {
-					for (int k = neighborCount - 1; k > i; k--) {
-						topSquaredDistances[k] = topSquaredDistances[k - 1];
-						topInstances[k] = topInstances[k - 1];
+			addNeighbor(i, squaredDistance, topSquaredDistances, topInstances);
+		}
+
+		vote(topSquaredDistances, topInstances, labels, scratch.histogram);
+	}
+
+	// Returns this thread's scratch space, made anew if the model has changed
+	// shape since it was last used
+	private Scratch scratch() {
+		Scratch s = scratch.get();
+		if (s == null || !s.fits(m_features.cols(), neighborCount, m_labels.valueCount(0))) {
+			s = new Scratch(m_features.cols(), neighborCount, m_labels.valueCount(0));
+			scratch.set(s);
+		}
+		return s;
+	}
+
+	/**
+	 * The arrays predict works in, one set per thread so that predictions
+	 * allocate nothing and can still run on several threads at once
+	 */
+	private static class Scratch {
+		final double[] normalizedFeatures;
+		final double[] topSquaredDistances;
+		final int[] topInstances;
+		final double[] row;
+		final int[] indices;
+		final double[] values;
+		final double[] zeroDistances;
+		final double[] histogram;
+
+		Scratch(int cols, int neighbors, int labelValues) {
+			normalizedFeatures = new double[cols];
+			topSquaredDistances = new double[neighbors];
+			topInstances = new int[neighbors];
+			row = new double[cols];
+			indices = new int[cols];
+			values = new double[cols];
+			zeroDistances = new double[cols];
+			histogram = new double[labelValues];
+		}
+
+		boolean fits(int cols, int neighbors, int labelValues) {
+			return row.length == cols && topInstances.length == neighbors
+					&& histogram.length == labelValues;
+		}
+	}
+
+	// Scores each block of query rows against the stored rows together, so that
+	// every stored row is read once per block instead of once per query. Only
+	// queries that take the check-free distance path are blocked.
+	public void predictBatch(Matrix features, double[] out, int labelCount)
+			throws Exception {
+		if (!plainFeatures || features.isSparse()) {
+			super.predictBatch(features, out, labelCount);
+			return;
+		}
+		int cols = m_features.cols();
+		double[] queries = new double[BATCH_ROWS * cols];
+		boolean[] blocked = new boolean[BATCH_ROWS];
+		double[][] topSquaredDistances = new double[BATCH_ROWS][neighborCount];
+		int[][] topInstances = new int[BATCH_ROWS][neighborCount];
+		double[] query = new double[cols];
+		double[] stored = new double[cols];
+		double[] labels = new double[labelCount];
+		double[] histogram = new double[m_labels.valueCount(0)];
+		for (int start = 0; start < features.rows(); start += BATCH_ROWS) {
+			int count = Math.min(BATCH_ROWS, features.rows() - start);
+			for (int b = 0; b < count; b++) {
+				features.copyRow(start + b, query);
+				blocked[b] = true;
+				for (int j = 0; j < cols; j++) {
+					if (query[j] == Matrix.MISSING)
+						blocked[b] = false;
+				}
+				if (normalizeFeatures)
+					normalizer.apply(query);
+				System.arraycopy(query, 0, queries, b * cols, cols);
+				Arrays.fill(topSquaredDistances[b], Double.MAX_VALUE);
+				Arrays.fill(topInstances[b], -1);
+			}
+
+			for (int i = 0; i < m_features.rows(); i++) {
+				m_features.copyRow(i, stored);
+				for (int b = 0; b < count; b++) {
+					if (!blocked[b])
+						continue;
+					double distance = 0;
+					for (int j = 0; j < cols; j++) {
+						double d = stored[j] - queries[b * cols + j];
+						distance += d * d;
 					}
+					addNeighbor(i, distance, topSquaredDistances[b],
+							topInstances[b]);
+				}
+			}
 
-					topSquaredDistances[j] = squaredDistances[i];
-					topInstances[j] = i;
-					break;
+			for (int b = 0; b < count; b++) {
+				if (blocked[b])
+					vote(topSquaredDistances[b], topInstances[b], labels, histogram);
+				else {
+					features.copyRow(start + b, query);
+					predict(query, labels);
 				}
+				System.arraycopy(labels, 0, out, (start + b) * labelCount,
+						labelCount);
 			}
 		}
+	}
+
+	// Puts stored row i, at the given distance, into the nearest neighbors if it
+	// belongs there
+	private void addNeighbor(int i, double squaredDistance,
+			double[] topSquaredDistances, int[] topInstances) {
+		for (int j = 0; j < neighborCount; j++) {
+			if (squaredDistance < topSquaredDistances[j]) {
+				for (int k = neighborCount - 1; k > i; k--) {
+					topSquaredDistances[k] = topSquaredDistances[k - 1];
+					topInstances[k] = topInstances[k - 1];
+				}
+
+				topSquaredDistances[j] = squaredDistance;
+				topInstances[j] = i;
+				break;
+			}
+		}
+	}
 
+	// Predicts the label from the nearest neighbors, counting nominal votes in
+	// histogram
+	private void vote(double[] topSquaredDistances, int[] topInstances,
+			double[] labels, double[] histogram) {
 		if (weightDistances && topSquaredDistances[0] == 0)
-			labels[0] = m_labels.row(topInstances[0])[0];
+			labels[0] = m_labels.get(topInstances[0], 0);
 		else if (m_labels.valueCount(0) == 0) {
 			double sum = 0;
 			for (int i = 0; i < topInstances.length; i++) {
 				if (weightDistances)
-					sum += m_labels.row(topInstances[i])[0]
+					sum += m_labels.get(topInstances[i], 0)
 							/ topSquaredDistances[i];
 				else
-					sum += m_labels.row(topInstances[i])[0];
+					sum += m_labels.get(topInstances[i], 0);
 			}
 			if (weightDistances) {
 				double normalizer = 0;
@@ -155,12 +359,12 @@ public class InstanceBasedLearner extends SupervisedLearner {
 			} else
 				labels[0] = sum / topInstances.length;
 		} else {
-			double[] histogram = new double[m_labels.valueCount(0)];
+			Arrays.fill(histogram, 0);
 			for (int i = 0; i < topInstances.length; i++) {
 				if (weightDistances)
-					histogram[(int) m_labels.row(topInstances[i])[0]] += 1 / topSquaredDistances[i];
+					histogram[(int) m_labels.get(topInstances[i], 0)] += 1 / topSquaredDistances[i];
 				else
-					histogram[(int) m_labels.row(topInstances[i])[0]]++;
+					histogram[(int) m_labels.get(topInstances[i], 0)]++;
 			}
 
 			double max = 0;
@@ -0,0 +1,70 @@
+/**
+ * The loops NeuralNet spends its time in, over slices of double arrays. This
+ * class runs them as plain Java loops. VectorKernels (in vector/) does the same
+ * work with the incubating Vector API, which uses the widest SIMD registers the
+ * CPU has; it is used instead whenever it is on the class path and the JVM was
+ * started with --add-modules jdk.incubator.vector. It is kept out of the main
+ * sources because they must build without that module. Setting the system
+ * property ml.kernels to "scalar" forces the plain loops.
+ *
+ * Only dot may give different results between the two, as the vector version
+ * adds up its products in a different order.
+ */
+public class Kernels {
+
+	private static final Kernels instance = load();
+
+	// Returns the kernels to use
+	static Kernels get() {
+		return instance;
+	}
+
+	private static Kernels load() {
+		if (!"scalar".equals(System.getProperty("ml.kernels"))) {
+			try {
+				return (Kernels) Class.forName("VectorKernels")
+						.getDeclaredConstructor().newInstance();
+			} catch (ReflectiveOperationException | LinkageError e) {
+				// Not built, or the module was not added
+			}
+		}
+		return new Kernels();
+	}
+
+	// What the kernels are, for messages
+	public String name() {
+		return "scalar";
+	}
+
+	// Returns the sum of a[aOffset + i] * b[bOffset + i] for i < n
+	double dot(double[] a, int aOffset, double[] b, int bOffset, int n) {
+		double sum = 0;
+		for (int i = 0; i < n; i++)
+			sum += a[aOffset + i] * b[bOffset + i];
+		return sum;
+	}
+
+	// Adds alpha * x[xOffset + i] to y[yOffset + i] for i < n
+	void addScaled(double alpha, double[] x, int xOffset, double[] y,
+			int yOffset, int n) {
+		for (int i = 0; i < n; i++)
+			y[yOffset + i] += alpha * x[xOffset + i];
+	}
+
+	// Moves each weight w[offset + i] (for i < n) by rate * in[inOffset + i] *
+	// delta plus momentum times its last change, changes[offset + i], which it
+	// replaces. A change too small to be a normal double is dropped: a weight
+	// whose gradient stays at zero (say, behind a ReLU that never fires) would
+	// otherwise see its change decay into subnormal numbers, which the CPU
+	// handles many times more slowly.
+	void updateWeights(double[] w, double[] changes, int offset, double[] in,
+			int inOffset, int n, double rate, double delta, double momentum) {
+		for (int i = 0; i < n; i++) {
+			double change = rate * in[inOffset + i] * delta + momentum * changes[offset + i];
+			if (Math.abs(change) < Double.MIN_NORMAL)
+				change = 0;
+			w[offset + i] += change;
+			changes[offset + i] = change;
+		}
+	}
+}
@@ -5,12 +5,18 @@
 
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Random;
 import java.io.File;
+import java.io.PrintStream;
 
 
 public class MLSystemManager {
-	
+
+	private int batchSize = 1; // for neural nets, set by -B
+	private int training = NeuralNet.TRAIN_SERIAL; // set by -D
+	private Activation activation = Activation.SIGMOID; // set by -F
+
 	/**
 	 *  When you make a new learning algorithm, you should add a line for it to this method.
 	 */
@@ -18,38 +24,119 @@ public class MLSystemManager {
 	{
 		if (model.equals("baseline")) return new BaselineLearner();
 		else if (model.equals("perceptron")) return new Perceptron(rand);
-		else if (model.equals("neuralnet")) return new NeuralNet(rand);
+		else if (model.equals("neuralnet")) {
+			NeuralNet net = new NeuralNet(rand);
+			net.setBatchSize(batchSize);
+			net.setTraining(training);
+			net.setActivation(activation);
+			return net;
+		}
 		else if (model.equals("decisiontree")) return new DecisionTree(rand);
 		else if (model.equals("knn")) return new InstanceBasedLearner();
 		else throw new Exception("Unrecognized model: " + model);
 	}
 
+	// Trains learner on features and labels, unless it was loaded from model
+	// (which may be null), and saves it to saveTo unless that is null
+	private void train(SupervisedLearner learner, ModelFile model, String saveTo,
+			Normalizer normalizer, Matrix features, Matrix labels) throws Exception {
+		if (model != null)
+			System.out.println("Using the saved model instead of training");
+		else {
+			double startTime = System.currentTimeMillis();
+			learner.train(features, labels);
+			double elapsedTime = System.currentTimeMillis() - startTime;
+			System.out.println("Time to train (in seconds): " + elapsedTime / 1000.0);
+		}
+		if (saveTo != null) {
+			ModelFile.save(learner, normalizer, features, labels, saveTo);
+			System.out.println("Saved the model to " + saveTo);
+		}
+	}
+
+	// Throws if data does not have the features and label the model was trained with
+	private void checkAttributes(ModelFile model, Matrix data) throws Exception {
+		if (data.cols() == 0)
+			throw new Exception("The data has no columns");
+		model.checkAttributes(data.view(0, 0, data.rows(), data.cols() - 1),
+				data.view(0, data.cols() - 1, data.rows(), 1));
+	}
+
+	// Prints the mean, standard deviation and 95% confidence interval of values
+	private void printSummary(String name, double[] values) {
+		double mean = CrossValidator.mean(values);
+		double halfWidth = CrossValidator.confidence95(values);
+		System.out.println(String.format("%-20s %10.6f %10.6f   [%9.6f, %9.6f]", name, mean,
+				CrossValidator.standardDeviation(values), mean - halfWidth, mean + halfWidth));
+	}
+
 	public void run(String[] args, long seed) throws Exception {
 
 		//args = new String[]{"-L", "baseline", "-A", "data/iris.arff", "-E", "cross", "10", "-N"};
 
-		Random rand = new Random(133133819/*seed*/); // Use a seed for deterministic results (makes debugging easier)
-//		Random rand = new Random(); // No seed for non-deterministic results
-
 		//Parse the command line arguments
 		ArgParser parser = new ArgParser(args);
+
+		// When serving stdin, stdout carries only the predictions
+		PrintStream stdout = System.out;
+		if (parser.getEvaluation().equals("serve") && parser.getEvalParameter().equals("-"))
+			System.setOut(System.err);
+
+		// Pass -S with the printed seed to repeat a run exactly
+		if (parser.hasSeed())
+			seed = parser.getSeed();
+		System.out.println("Seed: " + seed);
+		Random rand = new Random(seed);
 		String fileName = parser.getARFF(); //File specified by the user
 		String learnerName = parser.getLearner(); //Learning algorithm specified by the user
 		String evalMethod = parser.getEvaluation(); //Evaluation method specified by the user
 		String evalParameter = parser.getEvalParameter(); //Evaluation parameters specified by the user
 		boolean printConfusionMatrix = parser.getVerbose();
 		boolean normalize = parser.getNormalize();
+		boolean parallel = parser.getParallel();
+		batchSize = parser.getBatchSize();
+		if (parser.getDataParallel() != null)
+		{
+			if (parser.getDataParallel().equals("sync"))
+				training = NeuralNet.TRAIN_SYNC;
+			else if (parser.getDataParallel().equals("hogwild"))
+				training = NeuralNet.TRAIN_HOGWILD;
+			else
+				throw new Exception("Unknown data-parallel training: " + parser.getDataParallel());
+		}
+		if (parser.getActivation() != null)
+			activation = Activation.forName(parser.getActivation());
+		int layout = parser.getCompact() ? Matrix.LAYOUT_COMPACT : Matrix.LAYOUT_ROWS;
 
 		// Load the model
-		SupervisedLearner learner = getLearner(learnerName, rand);
+		ModelFile model = null;
+		SupervisedLearner learner;
+		if (parser.getModelIn() != null)
+		{
+			if (evalMethod.equals("cross"))
+				throw new Exception("A saved model cannot be cross-validated");
+			model = ModelFile.load(parser.getModelIn());
+			learner = model.learner();
+			if (learnerName == null)
+				learnerName = learner.getClass().getName();
+		}
+		else
+			learner = getLearner(learnerName, rand);
 
 		// Load the ARFF file
-		Matrix data = new Matrix();
-		data.loadArff(fileName);
-		if (normalize)
+		Matrix data = new Matrix(layout);
+		data.load(fileName);
+		if (model != null)
+			checkAttributes(model, data);
+		Normalizer normalizer = null;
+		if (model != null)
+			normalizer = model.normalizer(); // a saved model needs its data scaled as it was in training
+		else if (normalize)
+			normalizer = new Normalizer(data);
+		if (normalizer != null)
 		{
 			System.out.println("Using normalized data\n");
-			data.normalize();
+			normalizer.apply(data);
 		}
 
 		// Print some stats
@@ -59,19 +146,27 @@ public class MLSystemManager {
 		System.out.println("Number of attributes: " + data.cols());
 		System.out.println("Learning algorithm: " + learnerName);
 		System.out.println("Evaluation method: " + evalMethod);
+		if (model == null && learner instanceof NeuralNet)
+		{
+			// Printed here rather than by NeuralNet.train, which runs once per fold
+			if (batchSize > 1)
+				System.out.println("Training on mini-batches of " + batchSize + " rows");
+			if (training != NeuralNet.TRAIN_SERIAL)
+				System.out.println("Training on up to " + Runtime.getRuntime().availableProcessors()
+						+ " threads, " + (training == NeuralNet.TRAIN_SYNC ? "synchronously" : "Hogwild"));
+			if (activation != Activation.SIGMOID)
+				System.out.println("Hidden layer activation: " + activation.name());
+		}
 		System.out.println();
 
 		if (evalMethod.equals("training"))
 		{
 			System.out.println("Calculating accuracy on training set...");
-			Matrix features = new Matrix(data, 0, 0, data.rows(), data.cols() - 1);
-			Matrix labels = new Matrix(data, 0, data.cols() - 1, data.rows(), 1);
+			Matrix features = data.view(0, 0, data.rows(), data.cols() - 1);
+			Matrix labels = data.view(0, data.cols() - 1, data.rows(), 1);
 			Matrix confusion = new Matrix();
-			double startTime = System.currentTimeMillis();
-			learner.train(features, labels);
-			double elapsedTime = System.currentTimeMillis() - startTime;
-			System.out.println("Time to train (in seconds): " + elapsedTime / 1000.0);
-			double accuracy = learner.measureAccuracy(features, labels, confusion);
+			train(learner, model, parser.getModelOut(), normalizer, features, labels);
+			double accuracy = learner.measureAccuracy(features, labels, confusion, parallel);
 			System.out.println("Training set accuracy: " + accuracy);
 			if(printConfusionMatrix) {
 				System.out.println("\nConfusion matrix: (Row=target value, Col=predicted value)");
@@ -81,26 +176,25 @@ public class MLSystemManager {
 		}
 		else if (evalMethod.equals("static"))
 		{
-			Matrix testData = new Matrix();
-			testData.loadArff(evalParameter);
-			if (normalize)
-				testData.normalize(); // BUG! This may normalize differently from the training data. It should use the same ranges for normalization!
+			Matrix testData = new Matrix(layout);
+			testData.load(evalParameter);
+			if (model != null)
+				checkAttributes(model, testData);
+			if (normalizer != null)
+				normalizer.apply(testData); // with the ranges of the training data
 
 			System.out.println("Calculating accuracy on separate test set...");
 			System.out.println("Test set name: " + evalParameter);
 			System.out.println("Number of test instances: " + testData.rows());
-			Matrix features = new Matrix(data, 0, 0, data.rows(), data.cols() - 1);
-			Matrix labels = new Matrix(data, 0, data.cols() - 1, data.rows(), 1);
-			double startTime = System.currentTimeMillis();
-			learner.train(features, labels);
-			double elapsedTime = System.currentTimeMillis() - startTime;
-			System.out.println("Time to train (in seconds): " + elapsedTime / 1000.0);
-			double trainAccuracy = learner.measureAccuracy(features, labels, null);
+			Matrix features = data.view(0, 0, data.rows(), data.cols() - 1);
+			Matrix labels = data.view(0, data.cols() - 1, data.rows(), 1);
+			train(learner, model, parser.getModelOut(), normalizer, features, labels);
+			double trainAccuracy = learner.measureAccuracy(features, labels, null, parallel);
 			System.out.println("Training set accuracy: " + trainAccuracy);
-			Matrix testFeatures = new Matrix(testData, 0, 0, testData.rows(), testData.cols() - 1);
-			Matrix testLabels = new Matrix(testData, 0, testData.cols() - 1, testData.rows(), 1);
+			Matrix testFeatures = testData.view(0, 0, testData.rows(), testData.cols() - 1);
+			Matrix testLabels = testData.view(0, testData.cols() - 1, testData.rows(), 1);
 			Matrix confusion = new Matrix();
-			double testAccuracy = learner.measureAccuracy(testFeatures, testLabels, confusion);
+			double testAccuracy = learner.measureAccuracy(testFeatures, testLabels, confusion, parallel);
 			System.out.println("Test set accuracy: " + testAccuracy);
 			if(printConfusionMatrix) {
 				System.out.println("\nConfusion matrix: (Row=target value, Col=predicted value)");
@@ -116,20 +210,19 @@ public class MLSystemManager {
 				throw new Exception("Percentage for random evaluation must be between 0 and 1");
 			System.out.println("Percentage used for training: " + trainPercent);
 			System.out.println("Percentage used for testing: " + (1 - trainPercent));
-			data.shuffle(rand);
+			int[] order = data.permutation(rand);
 			int trainSize = (int)(trainPercent * data.rows());
-			Matrix trainFeatures = new Matrix(data, 0, 0, trainSize, data.cols() - 1);
-			Matrix trainLabels = new Matrix(data, 0, data.cols() - 1, trainSize, 1);
-			Matrix testFeatures = new Matrix(data, trainSize, 0, data.rows() - trainSize, data.cols() - 1);
-			Matrix testLabels = new Matrix(data, trainSize, data.cols() - 1, data.rows() - trainSize, 1);
-			double startTime = System.currentTimeMillis();
-			learner.train(trainFeatures, trainLabels);
-			double elapsedTime = System.currentTimeMillis() - startTime;
-			System.out.println("Time to train (in seconds): " + elapsedTime / 1000.0);
-			double trainAccuracy = learner.measureAccuracy(trainFeatures, trainLabels, null);
+			int[] trainRows = Arrays.copyOfRange(order, 0, trainSize);
+			int[] testRows = Arrays.copyOfRange(order, trainSize, order.length);
+			Matrix trainFeatures = data.view(trainRows, 0, data.cols() - 1);
+			Matrix trainLabels = data.view(trainRows, data.cols() - 1, 1);
+			Matrix testFeatures = data.view(testRows, 0, data.cols() - 1);
+			Matrix testLabels = data.view(testRows, data.cols() - 1, 1);
+			train(learner, model, parser.getModelOut(), normalizer, trainFeatures, trainLabels);
+			double trainAccuracy = learner.measureAccuracy(trainFeatures, trainLabels, null, parallel);
 			System.out.println("Training set accuracy: " + trainAccuracy);
 			Matrix confusion = new Matrix();
-			double testAccuracy = learner.measureAccuracy(testFeatures, testLabels, confusion);
+			double testAccuracy = learner.measureAccuracy(testFeatures, testLabels, confusion, parallel);
 			System.out.println("Test set accuracy: " + testAccuracy);
 			if(printConfusionMatrix) {
 				System.out.println("\nConfusion matrix: (Row=target value, Col=predicted value)");
@@ -137,6 +230,28 @@ public class MLSystemManager {
 				System.out.println("\n");
 			}
 		}
+		else if (evalMethod.equals("serve"))
+		{
+			Matrix features = data.view(0, 0, data.rows(), data.cols() - 1);
+			Matrix labels = data.view(0, data.cols() - 1, data.rows(), 1);
+			train(learner, model, parser.getModelOut(), normalizer, features, labels);
+			PredictionServer server = new PredictionServer(learner, features, labels, normalizer);
+			if (evalParameter.equals("-"))
+			{
+				server.serve(System.in, stdout);
+				System.out.println(server.stats());
+			}
+			else if (evalParameter.matches("[0-9]+"))
+			{
+				System.out.println("Serving predictions on port " + evalParameter);
+				server.serveTcp(Integer.parseInt(evalParameter));
+			}
+			else
+			{
+				System.out.println("Serving predictions on " + evalParameter);
+				server.serveUnix(evalParameter);
+			}
+		}
 		else if (evalMethod.equals("cross"))
 		{
 			System.out.println("Calculating accuracy using cross-validation...");
@@ -144,35 +259,33 @@ public class MLSystemManager {
 			if (folds <= 0)
 				throw new Exception("Number of folds must be greater than 0");
 			System.out.println("Number of folds: " + folds);
-			int reps = 1;
-			double sumTrainAccuracy = 0.0;
-			double sumAccuracy = 0.0;
-			double elapsedTime = 0.0;
-			for(int j = 0; j < reps; j++) {
-				data.shuffle(rand);
-				for (int i = 0; i < folds; i++) {
-					int begin = i * data.rows() / folds;
-					int end = (i + 1) * data.rows() / folds;
-					Matrix trainFeatures = new Matrix(data, 0, 0, begin, data.cols() - 1);
-					Matrix trainLabels = new Matrix(data, 0, data.cols() - 1, begin, 1);
-					Matrix testFeatures = new Matrix(data, begin, 0, end - begin, data.cols() - 1);
-					Matrix testLabels = new Matrix(data, begin, data.cols() - 1, end - begin, 1);
-					trainFeatures.add(data, end, 0, data.rows() - end);
-					trainLabels.add(data, end, data.cols() - 1, data.rows() - end);
-					double startTime = System.currentTimeMillis();
-					learner.train(trainFeatures, trainLabels);
-					elapsedTime += System.currentTimeMillis() - startTime;
-					double trainAccuracy = learner.measureAccuracy(trainFeatures, trainLabels, null);
-					double accuracy = learner.measureAccuracy(testFeatures, testLabels, null);
-					sumTrainAccuracy += trainAccuracy;
-					sumAccuracy += accuracy;
-//					System.out.println("Rep=" + j + ", Fold=" + i + ", Training accuracy= " + trainAccuracy + ", Accuracy=" + accuracy);
-//					System.out.println(accuracy);
+			CrossValidator cv = new CrossValidator(data, folds, seed);
+			cv.setReps(parser.getReps());
+			cv.setStratified(parser.getStratify());
+			cv.setParallel(parallel);
+			System.out.println("Number of reps: " + cv.reps());
+			if (parser.getStratify())
+				System.out.println("Stratified folds");
+			final String name = learnerName;
+			cv.run(new CrossValidator.LearnerFactory() {
+				public SupervisedLearner newLearner(Random rand) throws Exception {
+					return getLearner(name, rand);
 				}
-			}
-			elapsedTime /= (reps * folds);
-			System.out.println("Average time to train (in seconds): " + elapsedTime / 1000.0);
-			System.out.println("Mean accuracy=" + (sumAccuracy / (reps * folds)));
+			});
+
+			double[] accuracies = cv.accuracies();
+			double[] trainAccuracies = cv.trainAccuracies();
+			double[] trainTimes = cv.trainTimes();
+			System.out.println(String.format("%4s %4s %22s %18s %14s", "Rep", "Fold", "Time to train (s)", "Training accuracy", "Test accuracy"));
+			for (int k = 0; k < accuracies.length; k++)
+				System.out.println(String.format("%4d %4d %22.3f %18.6f %14.6f", k / folds, k % folds, trainTimes[k], trainAccuracies[k], accuracies[k]));
+			System.out.println("Average time to train (in seconds): " + CrossValidator.mean(trainTimes));
+			System.out.println("Mean accuracy=" + CrossValidator.mean(accuracies));
+			System.out.println();
+			System.out.println(String.format("%-20s %10s %10s %23s", "", "Mean", "Std dev", "95% confidence"));
+			printSummary("Test accuracy", accuracies);
+			printSummary("Training accuracy", trainAccuracies);
+			printSummary("Time to train (s)", trainTimes);
 		}
 	}
 
@@ -187,6 +300,16 @@ public class MLSystemManager {
 		String evalExtra;
 		boolean verbose;
 		boolean normalize;
+		boolean compact;
+		boolean parallel;
+		boolean stratify;
+		int reps = 1;
+		int batchSize = 1;
+		String dataParallel;
+		String activation;
+		Long seed;
+		String modelIn;
+		String modelOut;
 
 		//You can add more options for specific learning models if you wish
 		public ArgParser(String[] argv) {
@@ -201,6 +324,46 @@ public class MLSystemManager {
 			 		else if (argv[i].equals("-N"))
 			 		{
 			 			normalize = true;
+			 		}
+			 		else if (argv[i].equals("-C"))
+			 		{
+			 			compact = true;
+			 		}
+			 		else if (argv[i].equals("-P"))
+			 		{
+			 			parallel = true;
+			 		}
+			 		else if (argv[i].equals("-T"))
+			 		{
+			 			stratify = true;
+			 		}
+			 		else if (argv[i].equals("-R"))
+			 		{
+			 			reps = Integer.parseInt(argv[++i]);
+			 		}
+			 		else if (argv[i].equals("-B"))
+			 		{
+			 			batchSize = Integer.parseInt(argv[++i]);
+			 		}
+			 		else if (argv[i].equals("-D"))
+			 		{
+			 			dataParallel = argv[++i];
+			 		}
+			 		else if (argv[i].equals("-F"))
+			 		{
+			 			activation = argv[++i];
+			 		}
+			 		else if (argv[i].equals("-S"))
+			 		{
+			 			seed = Long.parseLong(argv[++i]);
+			 		}
+			 		else if (argv[i].equals("-O"))
+			 		{
+			 			modelOut = argv[++i];
+			 		}
+			 		else if (argv[i].equals("-I"))
+			 		{
+			 			modelIn = argv[++i];
 			 		}
 						else if (argv[i].equals("-A"))
 						{
@@ -229,6 +392,11 @@ public class MLSystemManager {
 								//expecting the number of folds
 								evalExtra = argv[++i];
 							}
+							else if (argv[i].equals("serve"))
+							{
+								//expecting a port, a Unix socket path, or - for stdin
+								evalExtra = argv[++i];
+							}
 							else if (!argv[i].equals("training"))
 							{
 								System.out.println("Invalid Evaluation Method: " + argv[i]);
@@ -257,19 +425,30 @@ public class MLSystemManager {
 					System.exit(0);
 				}
 				
-				if (arff == null || learner == null || evaluation == null)
+				if (arff == null || (learner == null && modelIn == null) || evaluation == null)
 				{
 					System.out.println("Usage:");
 					System.out.println("MLSystemManager -L [learningAlgorithm] -A [ARFF_File] -E [evaluationMethod] {[extraParamters]} [OPTIONS]\n");
 					System.out.println("OPTIONS:");
 					System.out.println("-V Print the confusion matrix and learner accuracy on individual class values");
 					System.out.println("-N Use normalized data");
+					System.out.println("-C Keep the data in compact (float, byte and short) storage");
+					System.out.println("-P Use all cores: run cross-validation folds at once and measure accuracy in parallel");
+					System.out.println("-S [seed] Seed the random numbers, to repeat a run");
+					System.out.println("-R [reps] Repeat cross-validation reps times, with a new shuffle each time");
+					System.out.println("-T Stratify the cross-validation folds on the label");
+					System.out.println("-B [rows] Train the neural net on mini-batches of this many rows (default 1, a step after every row)");
+					System.out.println("-D [sync | hogwild] Train the neural net on all cores: sync adds up the gradients of each mini-batch's shards before every step; hogwild lets each core update the weights without locking");
+					System.out.println("-F [sigmoid | sigmoid-table | tanh | relu] The activation of the neural net's hidden layers (default sigmoid; sigmoid-table is within 1e-6 of it)");
+					System.out.println("-O [file] Save the trained model to file");
+					System.out.println("-I [file] Use the model saved in file (-L may then be left out) instead of training one");
 					System.out.println();
 					System.out.println("Possible evaluation methods are:");
 					System.out.println("MLSystemManager -L [learningAlgorithm] -A [ARFF_File] -E training");
 					System.out.println("MLSystemManager -L [learningAlgorithm] -A [ARFF_File] -E static [testARFF_File]");
 					System.out.println("MLSystemManager -L [learningAlgorithm] -A [ARFF_File] -E random [%_ForTraining]");
-				  	System.out.println("MLSystemManager -L [learningAlgorithm] -A [ARFF_File] -E cross [numOfFolds]\n");
+				  	System.out.println("MLSystemManager -L [learningAlgorithm] -A [ARFF_File] -E cross [numOfFolds]");
+				  	System.out.println("MLSystemManager -L [learningAlgorithm] -A [ARFF_File] -E serve [port | socketPath | -]\n");
 					System.exit(0);
 				}
 			}
@@ -281,6 +460,17 @@ public class MLSystemManager {
 		public String getEvalParameter() { return evalExtra; }
 		public boolean getVerbose() { return verbose; } 
 		public boolean getNormalize() { return normalize; }
+		public boolean getCompact() { return compact; }
+		public boolean getParallel() { return parallel; }
+		public boolean getStratify() { return stratify; }
+		public int getReps() { return reps; }
+		public int getBatchSize() { return batchSize; }
+		public String getDataParallel() { return dataParallel; }
+		public String getActivation() { return activation; }
+		public boolean hasSeed() { return seed != null; }
+		public long getSeed() { return seed; }
+		public String getModelIn() { return modelIn; }
+		public String getModelOut() { return modelOut; }
 	}
 
 	public static void main(String[] args) throws Exception
@@ -288,7 +478,6 @@ public class MLSystemManager {
 		Random random = new Random();
 		MLSystemManager ml = new MLSystemManager();
 		long seed = random.nextInt();
-		System.out.println("Seed: " + seed);
 		ml.run(args, seed);
 	}
 }
@@ -10,12 +10,30 @@ import java.util.Map.Entry;
 import java.util.Random;
 import java.util.Iterator;
 import java.io.File;
+import java.io.FileReader;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.util.zip.GZIPInputStream;
 import java.lang.Exception;
 
 public class Matrix {
 	// Data
-	ArrayList< double[] > m_data;
+	MatrixStorage m_storage;
+	int m_layout = LAYOUT_ROWS;
+
+	// Cached column statistics, and the storage and modification count they were computed from
+	ColumnStats m_stats;
+	MatrixStorage m_stats_storage;
+	int m_stats_mod_count;
+
+	// Cached missing-value mask (kept up to date by set), and the storage and
+	// modification count it matches
+	MissingMask m_missing;
+	MatrixStorage m_missing_storage;
+	int m_missing_mod_count;
 
 	// Meta-data
 	ArrayList< String > m_attr_name;
@@ -24,19 +42,57 @@ public class Matrix {
 
 	static double MISSING = Double.MAX_VALUE; // representation of missing values in the dataset
 
+	// Storage layouts (see setLayout)
+	static final int LAYOUT_ROWS = 0; // a separate double[] for each row
+	static final int LAYOUT_ROW_MAJOR = 1; // one contiguous array, row after row
+	static final int LAYOUT_COLUMN_MAJOR = 2; // one contiguous array, column after column
+	static final int LAYOUT_SPARSE = 3; // only the non-zero cells of each row
+	static final int LAYOUT_COMPACT = 4; // a float, byte or short array for each column
+	static final int LAYOUT_OFF_HEAP = 5; // row after row, outside the Java heap
+
 	// Creates a 0x0 matrix. You should call loadARFF or setSize next.
 	public Matrix() {}
 
-	// Copies the specified portion of that matrix into this matrix
+	// Creates a 0x0 matrix that will keep its data in the specified layout
+	public Matrix(int layout) { m_layout = layout; }
+
+	// Copies the specified portion of that matrix into this matrix (see view
+	// for a version that does not copy)
 	public Matrix(Matrix that, int rowStart, int colStart, int rowCount, int colCount) {
-		m_data = new ArrayList< double[] >();
+		m_layout = that.m_layout;
+		copyAttributes(that, colStart, colCount);
+		m_storage = newStorage(0, colCount);
+		double[] rowDest = new double[colCount];
 		for(int j = 0; j < rowCount; j++) {
-			double[] rowSrc = that.row(rowStart + j);
-			double[] rowDest = new double[colCount];
 			for(int i = 0; i < colCount; i++)
-				rowDest[i] = rowSrc[colStart + i];
-			m_data.add(rowDest);
+				rowDest[i] = that.get(rowStart + j, colStart + i);
+			m_storage.addRow(rowDest);
 		}
+	}
+
+	// Returns a view of the specified portion of this matrix. Nothing is copied:
+	// the view reads and writes this matrix's data and shares its attribute
+	// dictionaries. Shuffling the view does not reorder this matrix. Views
+	// cannot grow: add throws, so copy a view (with the constructor above) to
+	// add rows to it.
+	public Matrix view(int rowStart, int colStart, int rowCount, int colCount) {
+		Matrix view = new Matrix(m_layout);
+		view.m_storage = new ViewStorage(m_storage, rowStart, rowCount, colStart, colCount);
+		view.copyAttributes(this, colStart, colCount);
+		return view;
+	}
+
+	// Returns a view of the listed rows (in the given order) and the specified
+	// columns. Like the view above, it cannot grow.
+	public Matrix view(int[] rows, int colStart, int colCount) {
+		Matrix view = new Matrix(m_layout);
+		view.m_storage = new ViewStorage(m_storage, rows, colStart, colCount);
+		view.copyAttributes(this, colStart, colCount);
+		return view;
+	}
+
+	// Takes the attribute names and dictionaries of the specified columns of that matrix
+	private void copyAttributes(Matrix that, int colStart, int colCount) {
 		m_attr_name = new ArrayList<String>();
 		m_str_to_enum = new ArrayList< TreeMap<String, Integer> >();
 		m_enum_to_str = new ArrayList< TreeMap<Integer, String> >();
@@ -49,28 +105,24 @@ public class Matrix {
 
 	// Adds a copy of the specified portion of that matrix to this matrix
 	public void add(Matrix that, int rowStart, int colStart, int rowCount) throws Exception {
+		if(m_storage instanceof ViewStorage)
+			throw new Exception("Cannot add rows to a view; copy it first");
 		if(colStart + cols() > that.cols())
 			throw new Exception("out of range");
 		for(int i = 0; i < cols(); i++) {
 			if(that.valueCount(colStart + i) != valueCount(i))
 				throw new Exception("incompatible relations");
 		}
+		double[] rowDest = new double[cols()];
 		for(int j = 0; j < rowCount; j++) {
-			double[] rowSrc = that.row(rowStart + j);
-			double[] rowDest = new double[cols()];
 			for(int i = 0; i < cols(); i++)
-				rowDest[i] = rowSrc[colStart + i];
-			m_data.add(rowDest);
+				rowDest[i] = that.get(rowStart + j, colStart + i);
+			m_storage.addRow(rowDest);
 		}
 	}
 
 	// Resizes this matrix (and sets all attributes to be continuous)
 	public void setSize(int rows, int cols) {
-		m_data = new ArrayList< double[] >();
-		for(int j = 0; j < rows; j++) {
-			double[] row = new double[cols];
-			m_data.add(row);
-		}
 		m_attr_name = new ArrayList<String>();
 		m_str_to_enum = new ArrayList< TreeMap<String, Integer> >();
 		m_enum_to_str = new ArrayList< TreeMap<Integer, String> >();
@@ -79,20 +131,31 @@ public class Matrix {
 			m_str_to_enum.add(new TreeMap<String, Integer>());
 			m_enum_to_str.add(new TreeMap<Integer, String>());
 		}
+		m_storage = newStorage(rows, cols);
 	}
 
 	// Loads from an ARFF file
 	public void loadArff(String filename) throws Exception, FileNotFoundException {
-		m_data = new ArrayList<double[]>();
+		loadArff(filename, false);
+	}
+
+	// Loads from an ARFF file. In parallel mode the @DATA section is split into
+	// chunks that are parsed on the common fork-join pool (see ParallelArffLoader).
+	public void loadArff(String filename, boolean parallel) throws Exception, FileNotFoundException {
+		m_storage = null;
 		m_attr_name = new ArrayList<String>();
 		m_str_to_enum = new ArrayList< TreeMap<String, Integer> >();
 		m_enum_to_str = new ArrayList< TreeMap<Integer, String> >();
 		boolean READDATA = false;
-		Scanner s = new Scanner(new File(filename));
-		while (s.hasNext()) {
-			String line = s.nextLine().trim();
-			if (line.length() > 0 && line.charAt(0) != '%') {
-				if (!READDATA) {
+		boolean gzip = filename.endsWith(".gz");
+		ArffParser parser = new ArffParser(gzip
+				? new InputStreamReader(new GZIPInputStream(new FileInputStream(filename), 1 << 16))
+				: new FileReader(filename));
+		try {
+			String line;
+			while (!READDATA && (line = parser.readLine()) != null) {
+				line = line.trim();
+				if (line.length() > 0 && line.charAt(0) != '%') {
 					
 					Scanner t = new Scanner(line);
 					String firstToken = t.next().toUpperCase();
@@ -142,66 +205,132 @@ public class Matrix {
 						READDATA = true;
 					}
 				}
-				else {
-					double[] newrow = new double[cols()];
-					int curPos = 0;
-
-					try {
-						Scanner t = new Scanner(line);
-						t.useDelimiter(",");
-						while (t.hasNext()) {
-							String textValue = t.next().trim();
-							//System.out.println(textValue);
-
-							if (textValue.length() > 0) {
-								double doubleValue;
-								int vals = m_enum_to_str.get(curPos).size();
-								
-								//Missing instances appear in the dataset as a double defined as MISSING
-								if (textValue.equals("?")) {
-									doubleValue = MISSING;
-								}
-								// Continuous values appear in the instance vector as they are
-								else if (vals == 0) {
-									doubleValue = Double.parseDouble(textValue);
-								}
-								// Discrete values appear as an index to the "name" 
-								// of that value in the "attributeValue" structure
-								else {
-									doubleValue = m_str_to_enum.get(curPos).get(textValue);
-									if (doubleValue == -1) {
-										throw new Exception("Error parsing the value '" + textValue + "' on line: " + line);
-									}
-								}
-								
-								newrow[curPos] = doubleValue;
-								curPos++;
-							}
-						}
-					}
-					catch(Exception e) {
-						throw new Exception("Error parsing line: " + line + "\n" + e.toString());
-					}
-					m_data.add(newrow);
-				}
+			}
+
+			// The data section is tokenized straight out of the parser's buffer
+			m_storage = newStorage(0, cols());
+			if (READDATA) {
+				if (parallel && !gzip && ParallelArffLoader.supportsDefaultCharset())
+					ParallelArffLoader.readData(this, filename);
+				else
+					parser.readData(this);
 			}
 		}
+		finally {
+			parser.close();
+		}
+	}
+
+	// Loads a dataset. ARFF files are read through a binary cache that is
+	// kept next to them (see BinaryMatrixFile), so they are only parsed once.
+	public void load(String filename) throws Exception {
+		BinaryMatrixFile.loadCached(this, filename);
+	}
+
+	// Saves this matrix in the binary dataset format
+	public void saveBinary(String filename) throws IOException {
+		BinaryMatrixFile.save(this, filename);
+	}
+
+	// Loads a file in the binary dataset format
+	public void loadBinary(String filename) throws Exception {
+		BinaryMatrixFile.load(this, filename);
+	}
+
+	// Creates empty storage in this matrix's layout
+	MatrixStorage newStorage(int rows, int cols) {
+		if (m_layout == LAYOUT_ROW_MAJOR)
+			return new PackedStorage(rows, cols, false);
+		else if (m_layout == LAYOUT_COLUMN_MAJOR)
+			return new PackedStorage(rows, cols, true);
+		else if (m_layout == LAYOUT_SPARSE)
+			return new SparseStorage(rows, cols);
+		else if (m_layout == LAYOUT_COMPACT) {
+			// Nominal columns get code arrays once the attributes are known
+			int[] valueCounts = null;
+			if (m_str_to_enum != null && m_str_to_enum.size() == cols) {
+				valueCounts = new int[cols];
+				for (int i = 0; i < cols; i++)
+					valueCounts[i] = valueCount(i);
+			}
+			return new CompactStorage(rows, cols, valueCounts);
+		}
+		else if (m_layout == LAYOUT_OFF_HEAP)
+			return new OffHeapStorage(rows, cols);
+		else
+			return new RowStorage(rows, cols);
+	}
+
+	// Called by the ARFF loaders before the first row when the file is written
+	// in sparse form. Unless a packed layout was chosen, the rows are then kept
+	// sparse in memory too.
+	void preferSparse() {
+		if (m_layout == LAYOUT_ROWS) {
+			m_layout = LAYOUT_SPARSE;
+			m_storage = newStorage(0, cols());
+		}
+	}
+
+	// Moves the data into the specified layout (one of the LAYOUT_* constants)
+	void setLayout(int layout) {
+		m_layout = layout;
+		if (m_storage == null)
+			return;
+		MatrixStorage old = m_storage;
+		m_storage = newStorage(0, old.cols());
+		double[] buf = new double[old.cols()];
+		for (int r = 0; r < old.rows(); r++) {
+			old.copyRow(r, buf);
+			m_storage.addRow(buf);
+		}
 	}
 
 	// Returns the number of rows in the matrix
-	int rows() { return m_data.size(); }
+	int rows() { return m_storage.rows(); }
 
 	// Returns the number of columns (or attributes) in the matrix
 	int cols() { return m_attr_name.size(); }
 
-	// Returns the specified row
-	double[] row(int r) { return m_data.get(r); }
+	// Returns the specified row. With a packed layout this is a copy, so
+	// writes to it do not change the matrix; use set instead.
+	double[] row(int r) { return m_storage.row(r); }
+
+	// Copies the specified row into dest without allocating
+	void copyRow(int r, double[] dest) { m_storage.copyRow(r, dest); }
+
+	// Returns a copy of the specified column
+	double[] column(int c) {
+		double[] result = new double[rows()];
+		m_storage.copyColumn(c, result);
+		return result;
+	}
+
+	// Copies the specified column into dest without allocating
+	void copyColumn(int c, double[] dest) { m_storage.copyColumn(c, dest); }
+
+	// Returns true if the rows are stored as lists of their non-zero cells.
+	// Learners can then iterate over copySparseRow instead of every column.
+	boolean isSparse() { return m_storage.isSparse(); }
+
+	// Copies the column indices and values of the non-zero cells of the specified
+	// row into indices and values (each needs room for cols() entries) and
+	// returns how many there are
+	int copySparseRow(int r, int[] indices, double[] values) {
+		return m_storage.copySparseRow(r, indices, values);
+	}
 
 	// Returns the element at the specified row and column
-	double get(int r, int c) { return m_data.get(r)[c]; }
+	double get(int r, int c) { return m_storage.get(r, c); }
 
 	// Sets the value at the specified row and column
-	void set(int r, int c, double v) { row(r)[c] = v; }
+	void set(int r, int c, double v) {
+		boolean fresh = m_missing != null && m_missing_storage == m_storage && m_missing_mod_count == m_storage.modCount();
+		m_storage.set(r, c, v);
+		if(fresh) {
+			m_missing.set(r, c, v == MISSING);
+			m_missing_mod_count = m_storage.modCount();
+		}
+	}
 
 	// Returns the name of the specified attribute
 	String attrName(int col) { return m_attr_name.get(col); }
@@ -220,9 +349,35 @@ public class Matrix {
 	void shuffle(Random rand) {
 		for(int n = rows(); n > 0; n--) {
 			int i = rand.nextInt(n);
-			double[] tmp = row(n - 1);
-			m_data.set(n - 1, row(i));
-			m_data.set(i, tmp);
+			m_storage.swapRows(n - 1, i);
+		}
+	}
+
+	// Returns the row indexes in a random order, without moving any rows. Iterate
+	// through the permutation, or pass it to view, instead of reordering the
+	// matrix. The same permutation serves a matrix and its buddy (e.g. its labels).
+	int[] permutation(Random rand) {
+		int[] order = identity(rows());
+		shuffle(order, rand);
+		return order;
+	}
+
+	// Returns 0, 1, ..., n - 1
+	static int[] identity(int n) {
+		int[] order = new int[n];
+		for(int i = 0; i < n; i++)
+			order[i] = i;
+		return order;
+	}
+
+	// Shuffles a permutation in place (e.g. for the next epoch). This draws the
+	// same random numbers, and gives the same order, as shuffling the rows themselves.
+	static void shuffle(int[] order, Random rand) {
+		for(int n = order.length; n > 0; n--) {
+			int i = rand.nextInt(n);
+			int tmp = order[n - 1];
+			order[n - 1] = order[i];
+			order[i] = tmp;
 		}
 	}
 
@@ -230,62 +385,67 @@ public class Matrix {
 	void shuffle(Random rand, Matrix buddy) {
 		for (int n = rows(); n > 0; n--) {
 			int i = rand.nextInt(n);
-			double[] tmp = row(n - 1);
-			m_data.set(n - 1, row(i));
-			m_data.set(i, tmp);
+			m_storage.swapRows(n - 1, i);
+			buddy.m_storage.swapRows(n - 1, i);
+		}
+	}
 
+	// Returns statistics for every column, computed in a single pass over the
+	// rows and reused until the data changes
+	ColumnStats columnStats() {
+		return columnStats(false);
+	}
 
-			double[] tmp1 = buddy.row(n - 1);
-			buddy.m_data.set(n - 1, buddy.row(i));
-			buddy.m_data.set(i, tmp1);
+	// Same as columnStats(), but computes on the common fork-join pool if parallel is true
+	ColumnStats columnStats(boolean parallel) {
+		if(m_stats == null || m_stats_storage != m_storage || m_stats_mod_count != m_storage.modCount()) {
+			m_stats = ColumnStats.compute(this, parallel);
+			m_stats_storage = m_storage;
+			m_stats_mod_count = m_storage.modCount();
 		}
+		return m_stats;
+	}
+
+	// Returns which cells hold MISSING, found in a single pass over the rows
+	// and reused until the data changes other than through set
+	MissingMask missingMask() {
+		if(m_missing == null || m_missing_storage != m_storage || m_missing_mod_count != m_storage.modCount())
+			setMissingMask(MissingMask.compute(this));
+		return m_missing;
+	}
+
+	// Takes mask as the missing-value mask of the current data
+	void setMissingMask(MissingMask mask) {
+		m_missing = mask;
+		m_missing_storage = m_storage;
+		m_missing_mod_count = m_storage.modCount();
+	}
+
+	// Returns true if the specified column has any missing values
+	boolean hasMissing(int col) {
+		return !missingMask().complete(col);
 	}
 
 	// Returns the mean of the specified column
 	double columnMean(int col) {
-		double sum = 0;
-		int count = 0;
-		for(int i = 0; i < rows(); i++) {
-			double v = get(i, col);
-			if(v != MISSING)
-			{
-				sum += v;
-				count++;
-			}
-		}
-		return sum / count;
+		return columnStats().mean(col);
 	}
 
 	// Returns the min value in the specified column
 	double columnMin(int col) {
-		double m = MISSING;
-		for(int i = 0; i < rows(); i++) {
-			double v = get(i, col);
-			if(v != MISSING)
-			{
-				if(m == MISSING || v < m)
-					m = v;
-			}
-		}
-		return m;
+		return columnStats().min[col];
 	}
 
 	// Returns the max value in the specified column
 	double columnMax(int col) {
-		double m = MISSING;
-		for(int i = 0; i < rows(); i++) {
-			double v = get(i, col);
-			if(v != MISSING)
-			{
-				if(m == MISSING || v > m)
-					m = v;
-			}
-		}
-		return m;
+		return columnStats().max[col];
 	}
 
 	// Returns the most common value in the specified column
 	double mostCommonValue(int col) {
+		ColumnStats stats = columnStats();
+		if(stats.hasHistogram(col))
+			return stats.mostCommon(col);
 		TreeMap<Double, Integer> tm = new TreeMap<Double, Integer>();
 		for(int i = 0; i < rows(); i++) {
 			double v = get(i, col);
@@ -313,50 +473,26 @@ public class Matrix {
 		return val;
 	}
 
+	// Scales each continuous column to [0, 1]. Use a Normalizer instead to scale
+	// other data the same way.
 	void normalize() {
-		for(int i = 0; i < cols(); i++) {
-			if(valueCount(i) == 0) {
-				double min = columnMin(i);
-				double max = columnMax(i);
-				for(int j = 0; j < rows(); j++) {
-					double v = get(j, i);
-					if(v != MISSING)
-						set(j, i, (v - min) / (max - min));
-				}
-			}
-		}
+		new Normalizer(this).apply(this);
 	}
 
+	// Writes this matrix to standard output in ARFF
 	void print() {
-		System.out.println("@RELATION Untitled");
-		for(int i = 0; i < m_attr_name.size(); i++) {
-			System.out.print("@ATTRIBUTE " + m_attr_name.get(i));
-			int vals = valueCount(i);
-			if(vals == 0)
-				System.out.println(" CONTINUOUS");
-			else
-			{
-				System.out.print(" {");
-				for(int j = 0; j < vals; j++) {
-					if(j > 0)
-						System.out.print(", ");
-					System.out.print(m_enum_to_str.get(i).get(j));
-				}
-				System.out.println("}");
-			}
+		try {
+			ArffWriter writer = new ArffWriter(System.out, false);
+			writer.write(this);
+			writer.flush();
 		}
-		System.out.println("@DATA");
-		for(int i = 0; i < rows(); i++) {
-			double[] r = row(i);
-			for(int j = 0; j < r.length; j++) {
-				if(j > 0)
-					System.out.print(", ");
-				if(valueCount(j) == 0)
-					System.out.print(r[j]);
-				else
-					System.out.print(m_enum_to_str.get(j).get((int)r[j]));
-			}
-			System.out.println("");
+		catch(IOException e) {
+			throw new UncheckedIOException(e);
 		}
 	}
+
+	// Saves this matrix in ARFF, gzipped if filename ends with ".gz"
+	public void saveArff(String filename) throws IOException {
+		ArffWriter.write(this, filename);
+	}
 }
@@ -0,0 +1,78 @@
+/**
+ * Holds the cells of a Matrix. Matrix does all of its data access through
+ * this class, so the memory layout can change without the learners noticing.
+ */
+public abstract class MatrixStorage {
+
+	// Incremented by every change made through set, addRow and swapRows (but
+	// not by writes into an array returned by row), so that values derived from
+	// the data can tell when they are stale
+	int modCount;
+
+	// Returns a number that changes whenever the data changes
+	int modCount() {
+		return modCount;
+	}
+
+	// Returns the number of rows
+	abstract int rows();
+
+	// Returns the number of columns
+	abstract int cols();
+
+	// Returns the element at the specified row and column
+	abstract double get(int r, int c);
+
+	// Sets the value at the specified row and column
+	abstract void set(int r, int c, double v);
+
+	// Appends a copy of the given row
+	abstract void addRow(double[] row);
+
+	// Exchanges the contents of two rows
+	abstract void swapRows(int a, int b);
+
+	// Returns the specified row. Storage that does not keep each row in its own
+	// array returns a copy, so writes to it do not reach the matrix.
+	double[] row(int r) {
+		double[] result = new double[cols()];
+		copyRow(r, result);
+		return result;
+	}
+
+	// Copies the specified row into dest
+	void copyRow(int r, double[] dest) {
+		int cols = cols();
+		for (int c = 0; c < cols; c++)
+			dest[c] = get(r, c);
+	}
+
+	// Returns true if rows are kept as lists of their non-zero cells
+	boolean isSparse() {
+		return false;
+	}
+
+	// Copies the column indices and values of the non-zero cells of row r into
+	// indices and values (each needs room for cols() entries) and returns how
+	// many there are
+	int copySparseRow(int r, int[] indices, double[] values) {
+		int cols = cols();
+		int n = 0;
+		for (int c = 0; c < cols; c++) {
+			double v = get(r, c);
+			if (v != 0) {
+				indices[n] = c;
+				values[n] = v;
+				n++;
+			}
+		}
+		return n;
+	}
+
+	// Copies the specified column into dest
+	void copyColumn(int c, double[] dest) {
+		int rows = rows();
+		for (int r = 0; r < rows; r++)
+			dest[r] = get(r, c);
+	}
+}
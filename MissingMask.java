@@ -0,0 +1,81 @@
+import java.util.BitSet;
+
+/**
+ * Records which cells of a matrix hold Matrix.MISSING, as one bitset per
+ * column, along with how many missing cells each column has. Learners check
+ * complete(c) once and then skip the per-cell missing checks for that column.
+ * Matrix.missingMask builds one lazily and keeps it up to date through set.
+ */
+public class MissingMask {
+
+	private final BitSet[] bits;
+	private final int[] counts;
+
+	// Creates a mask with no missing cells
+	MissingMask(int cols) {
+		bits = new BitSet[cols];
+		counts = new int[cols];
+		for (int c = 0; c < cols; c++)
+			bits[c] = new BitSet();
+	}
+
+	// Finds the missing cells of m in one pass over its rows
+	static MissingMask compute(Matrix m) {
+		MissingMask mask = new MissingMask(m.cols());
+		double[] row = new double[m.cols()];
+		for (int r = 0; r < m.rows(); r++) {
+			m.copyRow(r, row);
+			for (int c = 0; c < row.length; c++) {
+				if (row[c] == Matrix.MISSING) {
+					mask.bits[c].set(r);
+					mask.counts[c]++;
+				}
+			}
+		}
+		return mask;
+	}
+
+	// Returns true if the cell at row r and column c is missing
+	boolean isMissing(int r, int c) {
+		return bits[c].get(r);
+	}
+
+	// Marks the cell at row r and column c as missing or not
+	void set(int r, int c, boolean missing) {
+		if (bits[c].get(r) == missing)
+			return;
+		bits[c].set(r, missing);
+		counts[c] += missing ? 1 : -1;
+	}
+
+	// Marks every cell of column c whose bit is set in words (bit r % 64 of
+	// word r / 64) as missing
+	void setColumn(int c, long[] words) {
+		bits[c] = BitSet.valueOf(words);
+		counts[c] = bits[c].cardinality();
+	}
+
+	// Returns the missing cells of column c as words in the setColumn format
+	long[] column(int c) {
+		return bits[c].toLongArray();
+	}
+
+	// Returns the number of missing cells in column c
+	int count(int c) {
+		return counts[c];
+	}
+
+	// Returns true if column c has no missing cells
+	boolean complete(int c) {
+		return counts[c] == 0;
+	}
+
+	// Returns true if no column has missing cells
+	boolean complete() {
+		for (int c = 0; c < counts.length; c++) {
+			if (counts[c] != 0)
+				return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,279 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Random;
+
+/**
+ * Saves a trained learner, so that a model can be trained once and then used
+ * for predictions anywhere without the training data. Along with the model the
+ * file keeps the attributes (names and nominal values) of the features and
+ * labels it was trained on, and the normalizer its inputs were scaled with, if
+ * any. Files are read through FileChannel.map, and matrices in them (such as
+ * the rows an InstanceBasedLearner keeps) are used straight from the mapped,
+ * read-only pages instead of being copied.
+ *
+ * Layout (little-endian):
+ *   int magic, int version, learner class name (a string as in
+ *     BinaryMatrixFile), int feature count, int label count,
+ *   feature attributes, label attributes (as in BinaryMatrixFile),
+ *   boolean (an int) for whether a normalizer follows, the normalizer,
+ *   then whatever the learner writes in writeModel
+ */
+public class ModelFile {
+
+	static final int MAGIC = 0x444D4C4D; // "MLMD"
+	// 2: neural nets save their activation. Version 1 files can still be read.
+	static final int VERSION = 2;
+
+	private static final long MAX_WINDOW = 1 << 30; // bytes mapped at a time
+
+	private final SupervisedLearner learner;
+	private final Normalizer normalizer;
+	private final Matrix features; // no rows, only the attributes
+	private final Matrix labels;
+
+	private ModelFile(SupervisedLearner learner, Normalizer normalizer,
+			Matrix features, Matrix labels) {
+		this.learner = learner;
+		this.normalizer = normalizer;
+		this.features = features;
+		this.labels = labels;
+	}
+
+	// The learner, ready to predict
+	public SupervisedLearner learner() { return learner; }
+
+	// The normalizer the model's inputs must be scaled with, or null
+	public Normalizer normalizer() { return normalizer; }
+
+	// Empty matrices with the attributes of the features and labels the model
+	// was trained on
+	public Matrix features() { return features; }
+
+	public Matrix labels() { return labels; }
+
+	// Throws if features or labels do not have the columns the model was
+	// trained with, with the same nominal values in the same order
+	public void checkAttributes(Matrix features, Matrix labels) throws Exception {
+		if (!sameAttributes(this.features, features)
+				|| !sameAttributes(this.labels, labels))
+			throw new Exception("The data does not have the attributes the model was trained with");
+	}
+
+	private static boolean sameAttributes(Matrix a, Matrix b) {
+		if (a.cols() != b.cols())
+			return false;
+		for (int c = 0; c < a.cols(); c++) {
+			if (a.valueCount(c) != b.valueCount(c))
+				return false;
+			for (int v = 0; v < a.valueCount(c); v++) {
+				if (!a.attrValue(c, v).equals(b.attrValue(c, v)))
+					return false;
+			}
+		}
+		return true;
+	}
+
+	// Saves learner, trained on features and labels (whose inputs were scaled
+	// by normalizer, which may be null), to filename
+	public static void save(SupervisedLearner learner, Normalizer normalizer,
+			Matrix features, Matrix labels, String filename) throws IOException {
+		File file = new File(filename);
+		// Each save gets a file of its own, so processes saving the same file at
+		// once never write to (or truncate) one another's
+		Path tmp = Files.createTempFile(file.getAbsoluteFile().getParentFile().toPath(),
+				file.getName(), ".tmp");
+		try {
+			RandomAccessFile raf = new RandomAccessFile(tmp.toFile(), "rw");
+			try {
+				Writer out = new Writer(raf.getChannel());
+				out.putInt(MAGIC);
+				out.putInt(VERSION);
+				out.putString(learner.getClass().getName());
+				out.putInt(features.cols());
+				out.putInt(labels.cols());
+				BinaryMatrixFile.writeAttributes(out, features);
+				BinaryMatrixFile.writeAttributes(out, labels);
+				out.putBoolean(normalizer != null);
+				if (normalizer != null)
+					normalizer.write(out);
+				learner.writeModel(out);
+				out.flush();
+			} finally {
+				raf.close();
+			}
+			Files.move(tmp, file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	// Loads a model saved by save
+	public static ModelFile load(String filename) throws Exception {
+		RandomAccessFile raf = new RandomAccessFile(filename, "r");
+		try {
+			Reader in = new Reader(raf.getChannel());
+			if (in.getInt() != MAGIC)
+				throw new Exception(filename + " is not a saved model");
+			in.version = in.getInt();
+			if (in.version < 1 || in.version > VERSION)
+				throw new Exception(filename + " was written by a different version");
+			SupervisedLearner learner = newLearner(in.getString());
+			int featureCount = in.getInt();
+			int labelCount = in.getInt();
+			Matrix features = in.getAttributes(featureCount);
+			Matrix labels = in.getAttributes(labelCount);
+			Normalizer normalizer = in.getBoolean() ? new Normalizer(in) : null;
+			learner.readModel(in, features, labels);
+			return new ModelFile(learner, normalizer, features, labels);
+		} finally {
+			// Mapped pages stay readable after the file is closed
+			raf.close();
+		}
+	}
+
+	// Makes an untrained learner of the named class, passing a Random to its
+	// constructor if it takes one
+	private static SupervisedLearner newLearner(String className) throws Exception {
+		Class<?> c = Class.forName(className);
+		if (!SupervisedLearner.class.isAssignableFrom(c))
+			throw new Exception(className + " is not a learner");
+		for (Constructor<?> constructor : c.getConstructors()) {
+			Class<?>[] params = constructor.getParameterTypes();
+			if (params.length == 1 && params[0] == Random.class)
+				return (SupervisedLearner) constructor.newInstance(new Random());
+		}
+		return (SupervisedLearner) c.getConstructor().newInstance();
+	}
+
+	/**
+	 * What learners write their models with
+	 */
+	static class Writer extends BinaryMatrixFile.Output {
+
+		Writer(FileChannel channel) {
+			super(channel);
+		}
+
+		void putBoolean(boolean v) throws IOException {
+			putInt(v ? 1 : 0);
+		}
+
+		// Writes the length of v and then its values
+		void putDoubles(double[] v) throws IOException {
+			putInt(v.length);
+			for (int i = 0; i < v.length; i++)
+				putDouble(v[i]);
+		}
+
+		void putBooleans(boolean[] v) throws IOException {
+			putInt(v.length);
+			for (int i = 0; i < v.length; i++)
+				putBoolean(v[i]);
+		}
+
+		// Writes the cells of m (but not its attributes), so that getMatrix can
+		// map them
+		void putMatrix(Matrix m) throws IOException {
+			putInt(m.rows());
+			putInt(m.cols());
+			putBoolean(m.isSparse());
+			align(8);
+			double[] row = new double[m.cols()];
+			for (int r = 0; r < m.rows(); r++) {
+				m.copyRow(r, row);
+				for (int c = 0; c < row.length; c++)
+					putDouble(row[c]);
+			}
+		}
+	}
+
+	/**
+	 * What learners read their models with: a little-endian view of the file
+	 * through a mapped window that moves past any matrices
+	 */
+	static class Reader {
+		private final FileChannel channel;
+		private final long size;
+		private ByteBuffer in;
+		private long windowStart; // where in the file in starts
+		int version; // of the file, for learners whose models have changed
+
+		Reader(FileChannel channel) throws IOException {
+			this.channel = channel;
+			this.size = channel.size();
+			mapFrom(0);
+		}
+
+		int getInt() { return in.getInt(); }
+
+		double getDouble() { return in.getDouble(); }
+
+		boolean getBoolean() { return in.getInt() != 0; }
+
+		String getString() { return BinaryMatrixFile.getString(in); }
+
+		double[] getDoubles() {
+			double[] v = new double[in.getInt()];
+			in.asDoubleBuffer().get(v);
+			in.position(in.position() + v.length * 8);
+			return v;
+		}
+
+		boolean[] getBooleans() {
+			boolean[] v = new boolean[in.getInt()];
+			for (int i = 0; i < v.length; i++)
+				v[i] = getBoolean();
+			return v;
+		}
+
+		// Reads a matrix written by putMatrix and gives it the given attributes.
+		// The cells are mapped read-only rather than read, unless the matrix was
+		// sparse, in which case it is read back into sparse storage.
+		Matrix getMatrix(Matrix attributes) throws IOException {
+			int rows = in.getInt();
+			int cols = in.getInt();
+			boolean sparse = getBoolean();
+			long start = (windowStart + in.position() + 7) & ~7L;
+			Matrix m = new Matrix(attributes, 0, 0, 0, cols);
+			if (sparse) {
+				in.position((int) (start - windowStart));
+				m.m_storage = new SparseStorage(0, cols);
+				double[] row = new double[cols];
+				for (int r = 0; r < rows; r++) {
+					if (in.remaining() < cols * 8)
+						mapFrom(windowStart + in.position());
+					in.asDoubleBuffer().get(row);
+					in.position(in.position() + cols * 8);
+					m.m_storage.addRow(row);
+				}
+				return m;
+			}
+			m.m_layout = Matrix.LAYOUT_OFF_HEAP;
+			m.m_storage = OffHeapStorage.mapReadOnly(channel, start, rows, cols);
+			mapFrom(start + (long) rows * cols * 8);
+			return m;
+		}
+
+		// Returns an empty matrix with cols columns of attributes read from the file
+		Matrix getAttributes(int cols) {
+			Matrix m = new Matrix();
+			BinaryMatrixFile.readAttributes(in, cols, m);
+			m.m_storage = m.newStorage(0, cols);
+			return m;
+		}
+
+		private void mapFrom(long position) throws IOException {
+			windowStart = position;
+			in = channel.map(FileChannel.MapMode.READ_ONLY, position,
+					Math.min(size - position, MAX_WINDOW)).order(ByteOrder.LITTLE_ENDIAN);
+		}
+	}
+}
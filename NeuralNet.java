@@ -3,8 +3,13 @@
 // See http://creativecommons.org/publicdomain/zero/1.0/
 // ----------------------------------------------------------------
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 public class NeuralNet extends SupervisedLearner {
 
@@ -14,108 +19,142 @@ public class NeuralNet extends SupervisedLearner {
 	static int hiddenLayerCount = 4;
 	final static int neuronsPerHiddenLayer = 32;
 	final static double learningRate = 0.3;
-	double[][][] hiddenWeights;
-	double[][] outputWeights;
-	double[][] inputs;
 	final static double momentum = 0.8;
 	final static double validationSetSize = 0.25;
 	Random random;
+	private int batchSize = 1; // rows per weight update
+	private Activation activation = Activation.SIGMOID; // of the hidden layers
+
+	// How train uses the cores (see setTraining)
+	static final int TRAIN_SERIAL = 0;
+	static final int TRAIN_SYNC = 1;
+	static final int TRAIN_HOGWILD = 2;
+	private int training = TRAIN_SERIAL;
+	private int threads = Runtime.getRuntime().availableProcessors();
+
+	private static final Kernels kernels = Kernels.get();
+	private static final int BLOCK = 16; // neurons the forward pass takes at a time in batches
+
+	// Layer i is hidden layer i, or the output layer for the last one. Its
+	// weights are one array, row after row: neuron j weighs its input k by
+	// weights[i][j * widths[i] + k] and adds biases[i][j].
+	double[][] weights;
+	double[][] biases;
+	int[] widths; // the feature count, then the neuron count of each layer
+
+	// One workspace for each thread that trains, only while training
+	private Workspace[] workspaces;
+
+	// Activations for predict and predictSparse, one set per thread since
+	// those may be called from many threads at once
+	private final ThreadLocal<double[][]> predictInputs = new ThreadLocal<double[][]>();
 
 	public NeuralNet(Random random) {
 		this.random = random;
 	}
 
+	// Sets how many rows train looks at before each weight update. With 1 (the
+	// default) the weights move after every row; with more, each batch of rows
+	// goes through the network together and the weights take one step, with
+	// momentum, along the mean of the rows' gradients.
+	public void setBatchSize(int batchSize) {
+		if (batchSize <= 0)
+			throw new IllegalArgumentException("Batch size must be greater than 0");
+		this.batchSize = batchSize;
+	}
+
+	// Sets the activation of the hidden layers. The output layer needs values
+	// in [0, 1], as the labels are scaled to, so it keeps the sigmoid unless
+	// this is the table sigmoid, which it then uses too.
+	public void setActivation(Activation activation) {
+		this.activation = activation;
+	}
+
+	// Returns the activation of layer i
+	private Activation activation(int i) {
+		if (i < weights.length - 1 || activation == Activation.SIGMOID_TABLE)
+			return activation;
+		return Activation.SIGMOID;
+	}
+
+	// Sets how train uses the cores. TRAIN_SERIAL (the default) trains on the
+	// calling thread. TRAIN_SYNC splits each mini-batch into one shard per
+	// core; the shards' gradients are computed at once and added up, and the
+	// weights take one step as if the batch had been worked through on one
+	// thread. TRAIN_HOGWILD gives each core its own share of every epoch to
+	// train on, as on one thread (row by row or in mini-batches, with momentum
+	// of its own), all updating the same weights without any locking. The
+	// threads overwrite some of each other's updates, which costs less than it
+	// would to keep them apart when the updates are small and spread out.
+	// Either way the weights are checked on the validation rows after every
+	// epoch, as in serial training.
+	public void setTraining(int training) {
+		if (training != TRAIN_SERIAL && training != TRAIN_SYNC
+				&& training != TRAIN_HOGWILD)
+			throw new IllegalArgumentException("Unknown training mode: " + training);
+		this.training = training;
+	}
+
 	public void train(Matrix features, Matrix labels) throws Exception {
 
-		hiddenWeights = new double[hiddenLayerCount][][];
-		for (int i = 0; i < hiddenWeights.length; i++) {
-			hiddenWeights[i] = new double[neuronsPerHiddenLayer][];
-			for (int j = 0; j < hiddenWeights[i].length; j++) {
-				if (i == 0)
-					hiddenWeights[i][j] = new double[features.cols() + 1];
-				else
-					hiddenWeights[i][j] = new double[hiddenWeights[i - 1].length + 1];
-				for (int k = 0; k < hiddenWeights[i][j].length; k++) {
-					hiddenWeights[i][j][k] = random.nextDouble()
+		int layers = hiddenLayerCount + 1;
+		widths = new int[layers + 1];
+		widths[0] = features.cols();
+		for (int i = 0; i < hiddenLayerCount; i++)
+			widths[i + 1] = neuronsPerHiddenLayer;
+		widths[layers] = labels.cols();
+
+		// Each neuron draws its weights and then its bias
+		weights = new double[layers][];
+		biases = new double[layers][];
+		for (int i = 0; i < layers; i++) {
+			weights[i] = new double[widths[i + 1] * widths[i]];
+			biases[i] = new double[widths[i + 1]];
+			for (int j = 0; j < widths[i + 1]; j++) {
+				for (int k = 0; k < widths[i]; k++) {
+					weights[i][j * widths[i] + k] = random.nextDouble()
 							* (random.nextInt(2) == 0 ? -1 : 1);
 				}
-			}
-		}
-
-		outputWeights = new double[labels.cols()][];
-		for (int i = 0; i < outputWeights.length; i++) {
-			if (hiddenLayerCount == 0)
-				outputWeights[i] = new double[features.cols() + 1];
-			else
-				outputWeights[i] = new double[hiddenWeights[hiddenWeights.length - 1].length + 1];
-			for (int j = 0; j < outputWeights[i].length; j++) {
-				outputWeights[i][j] = random.nextDouble()
+				biases[i][j] = random.nextDouble()
 						* (random.nextInt(2) == 0 ? -1 : 1);
 			}
 		}
 
-		double[][][] bestHiddenWeights = new double[hiddenWeights.length][][];
-		for (int i = 0; i < bestHiddenWeights.length; i++) {
-			bestHiddenWeights[i] = new double[hiddenWeights[i].length][];
-			for (int j = 0; j < bestHiddenWeights[i].length; j++) {
-				bestHiddenWeights[i][j] = new double[hiddenWeights[i][j].length];
-				for (int k = 0; k < bestHiddenWeights[i][j].length; k++)
-					bestHiddenWeights[i][j][k] = hiddenWeights[i][j][k];
-			}
-		}
-
-		double[][] bestOutputWeights = new double[outputWeights.length][];
-		for (int i = 0; i < bestOutputWeights.length; i++) {
-			bestOutputWeights[i] = new double[outputWeights[i].length];
-			for (int j = 0; j < bestOutputWeights[i].length; j++)
-				bestOutputWeights[i][j] = outputWeights[i][j];
+		double[][] bestWeights = new double[layers][];
+		double[][] bestBiases = new double[layers][];
+		for (int i = 0; i < layers; i++) {
+			bestWeights[i] = weights[i].clone();
+			bestBiases[i] = biases[i].clone();
 		}
 
-		double[][] deltas = new double[hiddenLayerCount + 1][];
-		for (int i = 0; i < deltas.length; i++) {
-			if (i == deltas.length - 1)
-				deltas[i] = new double[outputWeights.length];
-			else
-				deltas[i] = new double[hiddenWeights[i].length];
-			for (int j = 0; j < deltas[i].length; j++)
-				deltas[i][j] = 0;
-		}
-
-		double[][][] lastWeightChanges = new double[hiddenLayerCount + 1][][];
-		for (int i = 0; i < lastWeightChanges.length; i++) {
-			if (i == lastWeightChanges.length - 1)
-				lastWeightChanges[i] = new double[outputWeights.length][];
-			else
-				lastWeightChanges[i] = new double[hiddenWeights[i].length][];
-			for (int j = 0; j < lastWeightChanges[i].length; j++) {
-				if (i == lastWeightChanges.length - 1)
-					lastWeightChanges[i][j] = new double[outputWeights[j].length];
-				else
-					lastWeightChanges[i][j] = new double[hiddenWeights[i][j].length];
-				for (int k = 0; k < lastWeightChanges[i][j].length; k++)
-					lastWeightChanges[i][j][k] = 0;
-			}
-		}
+		if (training == TRAIN_SYNC && batchSize == 1)
+			throw new Exception("Synchronous training needs mini-batches of more than one row");
+		allocateWorkspaces(features.cols());
 
 		// printWeights();
 
-		features.shuffle(random, labels);
-
-		double[] guessedLabels = new double[labels.cols()];
 		double validationWrongGuesses = Integer.MAX_VALUE;
 		double trainingWrongGuesses = 0;
 		double validationSSE = 0;
 		double trainingSSE = 0;
 		ArrayList<Double> epochAccuracies = new ArrayList<>();
 		int validationSetNumber = (int) (validationSetSize * features.rows());
-		Matrix validationFeatures = new Matrix(features, 0, 0,
-				validationSetNumber, features.cols());
-		Matrix trainingFeatures = new Matrix(features, validationSetNumber, 0,
-				features.rows() - validationSetNumber, features.cols());
-		Matrix validationLabels = new Matrix(labels, 0, 0, validationSetNumber,
-				labels.cols());
-		Matrix trainingLabels = new Matrix(labels, validationSetNumber, 0,
-				labels.rows() - validationSetNumber, labels.cols());
+		int[] order = features.permutation(random);
+		int[] validationRows = Arrays.copyOfRange(order, 0, validationSetNumber);
+		int[] trainingRows = Arrays.copyOfRange(order, validationSetNumber,
+				order.length);
+		Matrix validationFeatures = features.view(validationRows, 0,
+				features.cols());
+		Matrix trainingFeatures = features.view(trainingRows, 0,
+				features.cols());
+		Matrix validationLabels = labels.view(validationRows, 0, labels.cols());
+		Matrix trainingLabels = labels.view(trainingRows, 0, labels.cols());
+		int[] epochOrder = Matrix.identity(trainingFeatures.rows());
+		int outputCount = labels.cols();
+		double[] trainingOutputs = new double[trainingFeatures.rows()
+				* outputCount];
+		double[] validationOutputs = new double[validationFeatures.rows()
+				* outputCount];
 		double bestAccuracy = 0;
 		double bestMSE = 0;
 		double bestEpoch = 0;
@@ -126,110 +165,37 @@ public class NeuralNet extends SupervisedLearner {
 			trainingSSE = 0;
 			validationSSE = 0;
 
-			trainingFeatures.shuffle(random, trainingLabels);
-
-			for (int i = 0; i < trainingFeatures.rows(); i++) {
-
-				double[] outputs = getOutputs(trainingFeatures.row(i));
-				for (int j = 0; j < trainingLabels.cols(); j++) {
-					deltas[deltas.length - 1][j] = (trainingLabels.get(i, j)
-							/ (classCount - 1) - outputs[j])
-							* outputs[j] * (1 - outputs[j]);
-				}
-
-				for (int j = hiddenLayerCount - 1; j >= 0; j--) {
-					for (int k = 0; k < hiddenWeights[j].length; k++) {
-
-						deltas[j][k] = 0;
-
-						if (j == hiddenLayerCount - 1) {
-							for (int m = 0; m < outputWeights.length; m++)
-								deltas[j][k] += deltas[j + 1][m]
-										* outputWeights[m][k];
-						} else {
-							for (int m = 0; m < hiddenWeights[j + 1].length; m++)
-								deltas[j][k] += deltas[j + 1][m]
-										* hiddenWeights[j + 1][m][k];
-						}
-
-						deltas[j][k] *= inputs[j + 1][k]
-								* (1 - inputs[j + 1][k]);
-					}
-				}
-
-				for (int j = 0; j < trainingLabels.cols(); j++) {
-					for (int k = 0; k < outputWeights[j].length - 1; k++) {
-						outputWeights[j][k] += learningRate
-								* inputs[inputs.length - 1][k]
-								* deltas[deltas.length - 1][j]
-								+ momentum
-								* lastWeightChanges[lastWeightChanges.length - 1][j][k];
-						lastWeightChanges[lastWeightChanges.length - 1][j][k] = learningRate
-								* inputs[inputs.length - 1][k]
-								* deltas[deltas.length - 1][j]
-								+ momentum
-								* lastWeightChanges[lastWeightChanges.length - 1][j][k];
-					}
-					// update bias
-					outputWeights[j][outputWeights[j].length - 1] += learningRate
-							* deltas[deltas.length - 1][j]
-							+ momentum
-							* lastWeightChanges[lastWeightChanges.length - 1][j][outputWeights[j].length - 1];
-					lastWeightChanges[lastWeightChanges.length - 1][j][outputWeights[j].length - 1] = learningRate
-							* deltas[deltas.length - 1][j]
-							+ momentum
-							* lastWeightChanges[lastWeightChanges.length - 1][j][outputWeights[j].length - 1];
-				}
-
-				for (int j = hiddenLayerCount - 1; j >= 0; j--) {
-					for (int k = 0; k < hiddenWeights[j].length; k++) {
-						for (int m = 0; m < hiddenWeights[j][k].length - 1; m++) {
-							hiddenWeights[j][k][m] += learningRate
-									* inputs[j][m] * deltas[j][k] + momentum
-									* lastWeightChanges[j][k][m];
-							lastWeightChanges[j][k][m] = learningRate
-									* inputs[j][m] * deltas[j][k] + momentum
-									* lastWeightChanges[j][k][m];
-						}
-						// update bias
-						hiddenWeights[j][k][hiddenWeights[j][k].length - 1] += learningRate
-								* deltas[j][k]
-								+ momentum
-								* lastWeightChanges[j][k][hiddenWeights[j][k].length - 1];
-						lastWeightChanges[j][k][hiddenWeights[j][k].length - 1] = learningRate
-								* deltas[j][k]
-								+ momentum
-								* lastWeightChanges[j][k][hiddenWeights[j][k].length - 1];
-					}
-				}
+			// Each epoch reshuffles the visiting order; the data itself is not moved
+			Matrix.shuffle(epochOrder, random);
 
-				// System.out.println("Error values:");
-				// for (int a = 0; a < deltas.length; a++)
-				// for (int j = 0; j < deltas[a].length; j++)
-				// System.out.println(deltas[a][j]);
-			}
-
-			for (int i = 0; i < trainingFeatures.rows(); i++) {
-				double[] outputs = getOutputs(trainingFeatures.row(i));
-				predict(trainingFeatures.row(i), guessedLabels);
+			if (training == TRAIN_SYNC)
+				trainSync(trainingFeatures, trainingLabels, epochOrder);
+			else if (training == TRAIN_HOGWILD)
+				trainHogwild(trainingFeatures, trainingLabels, epochOrder);
+			else
+				trainRows(workspaces[0], trainingFeatures, trainingLabels,
+						epochOrder, 0, epochOrder.length);
 
+			getOutputs(trainingFeatures, trainingOutputs);
+			for (int n = 0; n < epochOrder.length; n++) {
+				int i = epochOrder[n];
 				for (int j = 0; j < trainingLabels.cols(); j++) {
-					trainingSSE += (trainingLabels.get(i, j) / (classCount - 1) - outputs[j])
-							* (trainingLabels.get(i, j) / (classCount - 1) - outputs[j]);
-					if (trainingLabels.get(i, j) != guessedLabels[j])
+					double output = trainingOutputs[i * outputCount + j];
+					trainingSSE += (trainingLabels.get(i, j) / (classCount - 1) - output)
+							* (trainingLabels.get(i, j) / (classCount - 1) - output);
+					if (trainingLabels.get(i, j) != Math.round((classCount - 1) * output))
 						trainingWrongGuesses++;
 				}
 			}
 
+			getOutputs(validationFeatures, validationOutputs);
 			for (int i = 0; i < validationFeatures.rows(); i++) {
-				double[] outputs = getOutputs(validationFeatures.row(i));
-				predict(validationFeatures.row(i), guessedLabels);
-
 				for (int j = 0; j < validationLabels.cols(); j++) {
+					double output = validationOutputs[i * outputCount + j];
 					validationSSE += (validationLabels.get(i, j)
-							/ (classCount - 1) - outputs[j])
-							* (validationLabels.get(i, j) / (classCount - 1) - outputs[j]);
-					if (validationLabels.get(i, j) != guessedLabels[j])
+							/ (classCount - 1) - output)
+							* (validationLabels.get(i, j) / (classCount - 1) - output);
+					if (validationLabels.get(i, j) != Math.round((classCount - 1) * output))
 						validationWrongGuesses++;
 				}
 			}
@@ -243,14 +209,10 @@ public class NeuralNet extends SupervisedLearner {
 				bestMSE = mse;
 				bestEpoch = epochAccuracies.size();
 
-				for (int i = 0; i < hiddenWeights.length; i++)
-					for (int j = 0; j < hiddenWeights[i].length; j++)
-						for (int k = 0; k < hiddenWeights[i][j].length; k++)
-							bestHiddenWeights[i][j][k] = hiddenWeights[i][j][k];
-
-				for (int i = 0; i < outputWeights.length; i++)
-					for (int j = 0; j < outputWeights[i].length; j++)
-						bestOutputWeights[i][j] = outputWeights[i][j];
+				for (int i = 0; i < layers; i++) {
+					System.arraycopy(weights[i], 0, bestWeights[i], 0, weights[i].length);
+					System.arraycopy(biases[i], 0, bestBiases[i], 0, biases[i].length);
+				}
 			}
 
 			epochAccuracies.add(accuracy);
@@ -266,63 +228,363 @@ public class NeuralNet extends SupervisedLearner {
 
 		System.out.println(bestAccuracy);
 		System.out.println(bestMSE);
-		hiddenWeights = bestHiddenWeights;
-		outputWeights = bestOutputWeights;
+		weights = bestWeights;
+		biases = bestBiases;
+		// The workspaces are only needed while training
+		workspaces = null;
 
 		System.out.println(epochAccuracies.size() + " epochs");
 	}
 
+	// Trains on the rows of features listed in order[from, to), one at a time
+	// or in mini-batches
+	private void trainRows(Workspace ws, Matrix features, Matrix labels,
+			int[] order, int from, int to) {
+		if (batchSize > 1) {
+			for (int n = from; n < to; n += batchSize) {
+				int count = Math.min(batchSize, to - n);
+				computeGradients(ws, features, labels, order, n, count);
+				applyGradients(ws, count);
+			}
+		} else {
+			for (int n = from; n < to; n++)
+				trainRow(ws, features, labels, order[n]);
+		}
+	}
+
+	// Trains on an epoch's mini-batches one after another, each split into
+	// shards whose gradients are computed at once and added up in shard order
+	private void trainSync(Matrix features, Matrix labels, int[] order) {
+		List<Shard> shards = new ArrayList<Shard>();
+		for (int n = 0; n < order.length; n += batchSize) {
+			int count = Math.min(batchSize, order.length - n);
+			int shardCount = Math.min(workspaces.length, count);
+			shards.clear();
+			for (int s = 0; s < shardCount; s++) {
+				int from = n + s * count / shardCount;
+				int to = n + (s + 1) * count / shardCount;
+				shards.add(new Shard(workspaces[s], features, labels, order,
+						from, to, true));
+			}
+			ForkJoinTask.invokeAll(shards);
+			Workspace first = workspaces[0];
+			for (int s = 1; s < shardCount; s++) {
+				for (int i = 0; i < weights.length; i++) {
+					kernels.addScaled(1, workspaces[s].gradients[i], 0,
+							first.gradients[i], 0, weights[i].length);
+					kernels.addScaled(1, workspaces[s].biasGradients[i], 0,
+							first.biasGradients[i], 0, biases[i].length);
+				}
+			}
+			applyGradients(first, count);
+		}
+	}
+
+	// Splits an epoch into one share per thread, which all train at once
+	private void trainHogwild(Matrix features, Matrix labels, int[] order) {
+		List<Shard> shards = new ArrayList<Shard>();
+		for (int s = 0; s < workspaces.length; s++) {
+			int from = s * order.length / workspaces.length;
+			int to = (s + 1) * order.length / workspaces.length;
+			shards.add(new Shard(workspaces[s], features, labels, order, from,
+					to, false));
+		}
+		ForkJoinTask.invokeAll(shards);
+	}
+
+	// Backpropagates row i of features and moves the weights
+	private void trainRow(Workspace ws, Matrix features, Matrix labels, int i) {
+		int layers = weights.length;
+		double[][] inputs = ws.activations;
+		double[][] deltas = ws.deltas;
+		double[] outputs = getOutputs(features, i, ws.activations[0], ws.indices,
+				ws.values, inputs);
+		Activation output = activation(layers - 1);
+		for (int j = 0; j < labels.cols(); j++) {
+			deltas[layers - 1][j] = (labels.get(i, j) / (classCount - 1) - outputs[j])
+					* output.derivative(outputs[j]);
+		}
+
+		// The error of each hidden neuron is the sum of the errors of the layer
+		// above weighted by the neuron's weights into it. The rows of that
+		// layer's weights are added up one neuron at a time, so the sums run in
+		// the same order as a column would.
+		for (int j = layers - 2; j >= 0; j--) {
+			int width = widths[j + 1];
+			Arrays.fill(deltas[j], 0);
+			for (int m = 0; m < widths[j + 2]; m++)
+				kernels.addScaled(deltas[j + 1][m], weights[j + 1], m * width,
+						deltas[j], 0, width);
+			Activation f = activation(j);
+			for (int k = 0; k < width; k++)
+				deltas[j][k] *= f.derivative(inputs[j + 1][k]);
+		}
+
+		for (int j = layers - 1; j >= 0; j--) {
+			int width = widths[j];
+			for (int k = 0; k < widths[j + 1]; k++) {
+				double delta = deltas[j][k];
+				kernels.updateWeights(weights[j], ws.lastWeightChanges[j],
+						k * width, inputs[j], 0, width, learningRate, delta,
+						momentum);
+				// update bias
+				double change = learningRate * delta + momentum
+						* ws.lastBiasChanges[j][k];
+				biases[j][k] += change;
+				ws.lastBiasChanges[j][k] = change;
+			}
+		}
+	}
+
+	// Backpropagates the count rows of features listed in order from start on,
+	// all at once, and sums their gradients into ws. Each pass is a matrix
+	// product over the batch: forward, the activations times the transposed
+	// weights; backward, the deltas times the weights; and for the gradients,
+	// the transposed deltas times the activations.
+	private void computeGradients(Workspace ws, Matrix features, Matrix labels,
+			int[] order, int start, int count) {
+		int layers = weights.length;
+		double[][] in = ws.batchActivations;
+		double[][] batchDeltas = ws.batchDeltas;
+		double[] row = ws.activations[0];
+		for (int b = 0; b < count; b++) {
+			features.copyRow(order[start + b], row);
+			System.arraycopy(row, 0, in[0], b * widths[0], widths[0]);
+		}
+		for (int i = 0; i < layers; i++)
+			forwardBatch(i, in[i], in[i + 1], 0, count);
+
+		double[] outputs = in[layers];
+		int outputCount = widths[layers];
+		Activation f = activation(layers - 1);
+		for (int b = 0; b < count; b++) {
+			for (int j = 0; j < outputCount; j++) {
+				double output = outputs[b * outputCount + j];
+				batchDeltas[layers - 1][b * outputCount + j] = (labels.get(
+						order[start + b], j) / (classCount - 1) - output)
+						* f.derivative(output);
+			}
+		}
+
+		// As in trainRow, a row at a time
+		for (int i = layers - 2; i >= 0; i--) {
+			int width = widths[i + 1];
+			int above = widths[i + 2];
+			double[] d = batchDeltas[i];
+			Arrays.fill(d, 0, count * width, 0);
+			for (int b = 0; b < count; b++) {
+				for (int m = 0; m < above; m++)
+					kernels.addScaled(batchDeltas[i + 1][b * above + m],
+							weights[i + 1], m * width, d, b * width, width);
+			}
+			f = activation(i);
+			for (int k = 0; k < count * width; k++)
+				d[k] *= f.derivative(in[i + 1][k]);
+		}
+
+		// Each row adds its outer product of deltas and inputs to the gradients,
+		// which stay in cache throughout
+		for (int i = 0; i < layers; i++) {
+			int width = widths[i];
+			int neurons = widths[i + 1];
+			Arrays.fill(ws.gradients[i], 0);
+			Arrays.fill(ws.biasGradients[i], 0);
+			for (int b = 0; b < count; b++) {
+				for (int j = 0; j < neurons; j++) {
+					double delta = batchDeltas[i][b * neurons + j];
+					kernels.addScaled(delta, in[i], b * width, ws.gradients[i],
+							j * width, width);
+					ws.biasGradients[i][j] += delta;
+				}
+			}
+		}
+	}
+
+	// Moves the weights one step, with momentum, along the mean of the
+	// gradients of count rows summed in ws
+	private void applyGradients(Workspace ws, int count) {
+		double rate = learningRate / count;
+		for (int i = 0; i < weights.length; i++) {
+			kernels.updateWeights(weights[i], ws.lastWeightChanges[i], 0,
+					ws.gradients[i], 0, weights[i].length, rate, 1, momentum);
+			for (int j = 0; j < widths[i + 1]; j++) {
+				double change = rate * ws.biasGradients[i][j] + momentum
+						* ws.lastBiasChanges[i][j];
+				biases[i][j] += change;
+				ws.lastBiasChanges[i][j] = change;
+			}
+		}
+	}
+
+	// Runs layer i forward on count rows of in, row b at b * widths[i], and
+	// puts the activations of row b in out at offset + b * widths[i + 1]. The
+	// weights of BLOCK neurons at a time are applied to every row, so they stay
+	// in cache while the rows stream past; the sums are the same as
+	// getOutputs(double[]) computes.
+	private void forwardBatch(int i, double[] in, double[] out, int offset,
+			int count) {
+		int inWidth = widths[i];
+		int outWidth = widths[i + 1];
+		double[] w = weights[i];
+		Activation f = activation(i);
+		for (int block = 0; block < outWidth; block += BLOCK) {
+			int end = Math.min(block + BLOCK, outWidth);
+			for (int b = 0; b < count; b++) {
+				for (int j = block; j < end; j++) {
+					double sum = kernels.dot(in, b * inWidth, w, j * inWidth, inWidth);
+					sum += biases[i][j];
+					out[offset + b * outWidth + j] = f.apply(sum);
+				}
+			}
+		}
+	}
+
+	// Models are saved a neuron at a time, its weights followed by its bias,
+	// layer after layer, each layer after its neuron count, and all that
+	// after the activation's name
+	void writeModel(ModelFile.Writer out) throws IOException {
+		out.putString(activation.name());
+		out.putInt(weights.length - 1);
+		for (int i = 0; i < weights.length; i++) {
+			out.putInt(widths[i + 1]);
+			for (int j = 0; j < widths[i + 1]; j++)
+				out.putDoubles(neuron(i, j));
+		}
+	}
+
+	void readModel(ModelFile.Reader in, Matrix features, Matrix labels)
+			throws Exception {
+		// Version 1 models always used the sigmoid
+		activation = in.version < 2 ? Activation.SIGMOID
+				: Activation.forName(in.getString());
+		int hiddenLayers = in.getInt();
+		if (hiddenLayers != hiddenLayerCount)
+			throw new Exception("The model has " + hiddenLayers
+					+ " hidden layers, but this network has " + hiddenLayerCount);
+		int layers = hiddenLayers + 1;
+		weights = new double[layers][];
+		biases = new double[layers][];
+		widths = new int[layers + 1];
+		widths[0] = features.cols();
+		for (int i = 0; i < layers; i++) {
+			widths[i + 1] = in.getInt();
+			weights[i] = new double[widths[i + 1] * widths[i]];
+			biases[i] = new double[widths[i + 1]];
+			for (int j = 0; j < widths[i + 1]; j++) {
+				double[] neuron = in.getDoubles();
+				if (neuron.length != widths[i] + 1)
+					throw new Exception("The model does not fit the features");
+				System.arraycopy(neuron, 0, weights[i], j * widths[i], widths[i]);
+				biases[i][j] = neuron[widths[i]];
+			}
+		}
+	}
+
+	// Returns the weights of neuron j of layer i followed by its bias
+	private double[] neuron(int i, int j) {
+		double[] neuron = Arrays.copyOfRange(weights[i], j * widths[i],
+				(j + 1) * widths[i] + 1);
+		neuron[widths[i]] = biases[i][j];
+		return neuron;
+	}
+
 	public void printWeights() {
 		System.out.println("Weights:");
-		for (int i = 0; i < hiddenWeights.length; i++) {
-			for (int j = 0; j < hiddenWeights[i].length; j++) {
-				for (int k = 0; k < hiddenWeights[i][j].length; k++)
-					System.out.print(String.format("%30s",
-							hiddenWeights[i][j][k]));
+		for (int i = 0; i < weights.length; i++) {
+			for (int j = 0; j < widths[i + 1]; j++) {
+				double[] neuron = neuron(i, j);
+				for (int k = 0; k < neuron.length; k++)
+					System.out.print(String.format("%30s", neuron[k]));
 				System.out.println();
 			}
 			System.out.println();
 		}
+	}
 
-		for (int i = 0; i < outputWeights.length; i++) {
-			for (int j = 0; j < outputWeights[i].length; j++)
-				System.out.print(String.format("%30s", outputWeights[i][j]));
-			System.out.println();
-		}
+	// Returns the outputs of the network for features. The array belongs to
+	// the calling thread and is overwritten by its next call.
+	public double[] getOutputs(double[] features) {
+		return getOutputs(features, null, 0, predictInputs(features.length));
+	}
 
-		System.out.println();
+	// Returns room for the inputs of every layer: inputs[0] is the features,
+	// inputs[i + 1] the outputs of hidden layer i, and the last one the outputs
+	// of the network
+	double[][] newInputs(int featureCount) {
+		double[][] inputs = new double[widths.length][];
+		inputs[0] = new double[featureCount];
+		for (int i = 1; i < widths.length; i++)
+			inputs[i] = new double[widths[i]];
+		return inputs;
 	}
 
-	public double[] getOutputs(double[] features) {
-		double[] outputs = new double[outputWeights.length];
-		inputs = new double[hiddenLayerCount + 1][];
-		inputs[0] = new double[features.length];
-		for (int i = 0; i < features.length; i++)
-			inputs[0][i] = features[i];
-
-		for (int i = 0; i < hiddenLayerCount; i++) {
-			inputs[i + 1] = new double[hiddenWeights[i].length];
-			for (int j = 0; j < hiddenWeights[i].length; j++) {
-				double sum = 0;
-				for (int k = 0; k < inputs[i].length; k++)
-					sum += inputs[i][k] * hiddenWeights[i][j][k];
-				sum += hiddenWeights[i][j][hiddenWeights[i][j].length - 1];
-				inputs[i + 1][j] = 1 / (1 + Math.pow(Math.E, -sum));
-			}
+	// Returns this thread's inputs for predicting, made again only when the
+	// network has changed shape since they were made
+	private double[][] predictInputs(int featureCount) {
+		double[][] inputs = predictInputs.get();
+		if (inputs == null || !fits(inputs, featureCount)) {
+			inputs = newInputs(featureCount);
+			predictInputs.set(inputs);
 		}
+		return inputs;
+	}
 
-		// System.out.println("Predicted output:");
-		for (int i = 0; i < outputs.length; i++) {
-			double sum = 0;
-			for (int j = 0; j < inputs[inputs.length - 1].length; j++)
-				sum += inputs[inputs.length - 1][j] * outputWeights[i][j];
-			sum += outputWeights[i][outputWeights[i].length - 1];
-			// outputs[i] = sum > 0 ? 1 : 0;
-			outputs[i] = 1 / (1 + Math.pow(Math.E, -sum));
-			// System.out.println(outputs[i]);
+	private boolean fits(double[][] inputs, int featureCount) {
+		if (inputs.length != widths.length || inputs[0].length != featureCount)
+			return false;
+		for (int i = 1; i < widths.length; i++) {
+			if (inputs[i].length != widths[i])
+				return false;
 		}
+		return true;
+	}
 
-		return outputs;
+	// Makes the workspaces train uses for a network with the current weights:
+	// one, or one per thread for data-parallel training
+	private void allocateWorkspaces(int featureCount) {
+		int count = 1;
+		int batchRows = batchSize;
+		if (training == TRAIN_SYNC) {
+			count = Math.min(threads, batchSize);
+			batchRows = (batchSize + count - 1) / count;
+		} else if (training == TRAIN_HOGWILD)
+			count = threads;
+		workspaces = new Workspace[count];
+		for (int i = 0; i < count; i++)
+			workspaces[i] = new Workspace(featureCount, batchRows);
+	}
+
+	// Runs the network forward, leaving the inputs of every layer in inputs
+	// (see newInputs) for backpropagation, and returns the last of them, the
+	// outputs. If indices is not null, it lists the nnz columns where features
+	// is non-zero, and the first layer only sums over those. Nothing is stored
+	// in the network itself, so any number of threads can run it at once with
+	// their own inputs. features may be inputs[0].
+	double[] getOutputs(double[] features, int[] indices, int nnz,
+			double[][] inputs) {
+		if (features != inputs[0])
+			System.arraycopy(features, 0, inputs[0], 0, features.length);
+
+		for (int i = 0; i < weights.length; i++) {
+			double[] in = inputs[i];
+			double[] out = inputs[i + 1];
+			double[] w = weights[i];
+			int width = widths[i];
+			Activation f = activation(i);
+			for (int j = 0; j < out.length; j++) {
+				double sum;
+				if (i == 0 && indices != null) {
+					sum = 0;
+					for (int k = 0; k < nnz; k++)
+						sum += features[indices[k]] * w[j * width + indices[k]];
+				} else
+					sum = kernels.dot(in, 0, w, j * width, width);
+				sum += biases[i][j];
+				out[j] = f.apply(sum);
+			}
+		}
+
+		return inputs[weights.length];
 	}
 
 	public void predict(double[] features, double[] labels) throws Exception {
@@ -331,4 +593,173 @@ public class NeuralNet extends SupervisedLearner {
 			labels[i] = Math.round((classCount - 1) * outputs[i]);
 		}
 	}
+
+	// Runs the network on the rows a block at a time
+	public void predictBatch(Matrix features, double[] out, int labelCount)
+			throws Exception {
+		if (labelCount != widths[widths.length - 1]) {
+			super.predictBatch(features, out, labelCount);
+			return;
+		}
+		getOutputs(features, out);
+		for (int i = 0; i < features.rows() * labelCount; i++)
+			out[i] = Math.round((classCount - 1) * out[i]);
+	}
+
+	public void predictSparse(int[] indices, double[] values, int nnz,
+			double[] dense, double[] labels) throws Exception {
+		double[] outputs = getOutputs(expand(indices, values, nnz, dense),
+				indices, nnz, predictInputs(dense.length));
+		for (int i = 0; i < labels.length; i++) {
+			labels[i] = Math.round((classCount - 1) * outputs[i]);
+		}
+	}
+
+	// Writes the sparse vector into dense (every other entry zero) and returns dense
+	private static double[] expand(int[] indices, double[] values, int nnz,
+			double[] dense) {
+		for (int i = 0; i < dense.length; i++)
+			dense[i] = 0;
+		for (int i = 0; i < nnz; i++)
+			dense[indices[i]] = values[i];
+		return dense;
+	}
+
+	// Runs the network forward on every row of m and puts the outputs of row r
+	// in outputs[r * outputCount] onwards. Dense rows go through a block at a
+	// time, so each neuron's weights are applied to the whole block while they
+	// are in cache; the sums are the same as getOutputs(double[]) computes.
+	void getOutputs(Matrix m, double[] outputs) {
+		int outputCount = widths[widths.length - 1];
+		if (m.isSparse()) {
+			double[] row = new double[m.cols()];
+			int[] indices = new int[m.cols()];
+			double[] values = new double[m.cols()];
+			double[][] inputs = newInputs(m.cols());
+			for (int r = 0; r < m.rows(); r++)
+				System.arraycopy(getOutputs(m, r, row, indices, values, inputs),
+						0, outputs, r * outputCount, outputCount);
+			return;
+		}
+		int maxWidth = m.cols();
+		for (int i = 1; i < widths.length; i++)
+			maxWidth = Math.max(maxWidth, widths[i]);
+		double[] row = new double[m.cols()];
+		double[] in = new double[BATCH_ROWS * maxWidth];
+		double[] next = new double[BATCH_ROWS * maxWidth];
+		for (int start = 0; start < m.rows(); start += BATCH_ROWS) {
+			int count = Math.min(BATCH_ROWS, m.rows() - start);
+			int inWidth = m.cols();
+			for (int b = 0; b < count; b++) {
+				m.copyRow(start + b, row);
+				System.arraycopy(row, 0, in, b * inWidth, inWidth);
+			}
+			for (int i = 0; i < weights.length - 1; i++) {
+				forwardBatch(i, in, next, 0, count);
+				double[] tmp = in;
+				in = next;
+				next = tmp;
+			}
+			// The output layer writes straight into outputs
+			forwardBatch(weights.length - 1, in, outputs, start * outputCount, count);
+		}
+	}
+
+	// Copies row i of m into row and runs the network on it, skipping zero
+	// inputs in the first layer when m is sparse
+	private double[] getOutputs(Matrix m, int i, double[] row, int[] indices,
+			double[] values, double[][] inputs) {
+		if (!m.isSparse()) {
+			m.copyRow(i, row);
+			return getOutputs(row, null, 0, inputs);
+		}
+		int nnz = m.copySparseRow(i, indices, values);
+		return getOutputs(expand(indices, values, nnz, row), indices, nnz,
+				inputs);
+	}
+
+	/**
+	 * What a thread needs to train, sized so that the forward and backward
+	 * passes allocate nothing per row
+	 */
+	private class Workspace {
+		final double[][] activations; // see newInputs; rows are read into activations[0]
+		final double[][] deltas;
+		final double[][] lastWeightChanges; // laid out like weights
+		final double[][] lastBiasChanges;
+		final int[] indices;
+		final double[] values;
+
+		// For mini-batches: the activations and deltas of every row of a batch
+		// (row b of layer i at b * widths[i]), and the summed gradients of the
+		// weights and biases
+		final double[][] batchActivations;
+		final double[][] batchDeltas;
+		final double[][] gradients;
+		final double[][] biasGradients;
+
+		Workspace(int featureCount, int batchRows) {
+			int layers = weights.length;
+			activations = newInputs(featureCount);
+			deltas = new double[layers][];
+			lastWeightChanges = new double[layers][];
+			lastBiasChanges = new double[layers][];
+			for (int i = 0; i < layers; i++) {
+				deltas[i] = new double[widths[i + 1]];
+				lastWeightChanges[i] = new double[weights[i].length];
+				lastBiasChanges[i] = new double[widths[i + 1]];
+			}
+			indices = new int[featureCount];
+			values = new double[featureCount];
+			if (batchSize == 1) {
+				batchActivations = batchDeltas = gradients = biasGradients = null;
+				return;
+			}
+			batchActivations = new double[widths.length][];
+			for (int i = 0; i < widths.length; i++)
+				batchActivations[i] = new double[batchRows * widths[i]];
+			batchDeltas = new double[layers][];
+			gradients = new double[layers][];
+			biasGradients = new double[layers][];
+			for (int i = 0; i < layers; i++) {
+				batchDeltas[i] = new double[batchRows * widths[i + 1]];
+				gradients[i] = new double[weights[i].length];
+				biasGradients[i] = new double[widths[i + 1]];
+			}
+		}
+	}
+
+	/**
+	 * One thread's share of data-parallel training: either the gradients of
+	 * its part of a mini-batch, or its share of an epoch to train on
+	 */
+	private class Shard extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Workspace ws;
+		private final Matrix features;
+		private final Matrix labels;
+		private final int[] order;
+		private final int from;
+		private final int to;
+		private final boolean gradientsOnly;
+
+		Shard(Workspace ws, Matrix features, Matrix labels, int[] order,
+				int from, int to, boolean gradientsOnly) {
+			this.ws = ws;
+			this.features = features;
+			this.labels = labels;
+			this.order = order;
+			this.from = from;
+			this.to = to;
+			this.gradientsOnly = gradientsOnly;
+		}
+
+		protected void compute() {
+			if (gradientsOnly)
+				computeGradients(ws, features, labels, order, from, to - from);
+			else
+				trainRows(ws, features, labels, order, from, to);
+		}
+	}
 }
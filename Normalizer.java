@@ -0,0 +1,105 @@
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Scales each continuous column to the range it had in the data the
+ * normalizer was fitted on, so that data seen later (a test set, single rows,
+ * or a stream of rows) is scaled exactly like the training data. Nominal
+ * columns and missing values are left as they are. Applying the transform
+ * never allocates.
+ */
+public class Normalizer {
+
+	private final boolean[] continuous;
+	private final double[] min;
+	private final double[] max;
+
+	// Fits to the range of each continuous column of m
+	public Normalizer(Matrix m) {
+		this(m, false);
+	}
+
+	// Fits to the range of each continuous column of m. If includeZero is true
+	// the ranges are widened to include 0 (and are [0, 0] for columns with no values).
+	public Normalizer(Matrix m, boolean includeZero) {
+		ColumnStats stats = m.columnStats();
+		continuous = new boolean[m.cols()];
+		min = new double[m.cols()];
+		max = new double[m.cols()];
+		for (int c = 0; c < m.cols(); c++) {
+			continuous[c] = m.valueCount(c) == 0;
+			if (!includeZero) {
+				min[c] = stats.min[c];
+				max[c] = stats.max[c];
+			} else if (stats.count[c] > 0) {
+				min[c] = Math.min(0, stats.min[c]);
+				max[c] = Math.max(0, stats.max[c]);
+			}
+		}
+	}
+
+	// Reads a normalizer saved by write
+	Normalizer(ModelFile.Reader in) {
+		continuous = in.getBooleans();
+		min = in.getDoubles();
+		max = in.getDoubles();
+	}
+
+	// Saves the fitted ranges
+	void write(ModelFile.Writer out) throws IOException {
+		out.putBooleans(continuous);
+		out.putDoubles(min);
+		out.putDoubles(max);
+	}
+
+	// Returns the number of columns this normalizer expects
+	public int cols() {
+		return min.length;
+	}
+
+	// Returns v, a value of column c, scaled
+	public double apply(int c, double v) {
+		if (!continuous[c] || v == Matrix.MISSING)
+			return v;
+		return (v - min[c]) / (max[c] - min[c]);
+	}
+
+	// Scales a row in place
+	public void apply(double[] row) {
+		apply(row, row);
+	}
+
+	// Writes the scaled values of row into dest (which may be row itself)
+	public void apply(double[] row, double[] dest) {
+		for (int c = 0; c < min.length; c++)
+			dest[c] = apply(c, row[c]);
+	}
+
+	// Scales every row of m in place
+	public void apply(Matrix m) {
+		for (int c = 0; c < min.length; c++) {
+			if (!continuous[c])
+				continue;
+			for (int r = 0; r < m.rows(); r++) {
+				double v = m.get(r, c);
+				if (v != Matrix.MISSING)
+					m.set(r, c, (v - min[c]) / (max[c] - min[c]));
+			}
+		}
+	}
+
+	// Returns an iterator that scales each row of rows in place as it is handed out
+	public Iterator<double[]> apply(final Iterator<double[]> rows) {
+		return new Iterator<double[]>() {
+			public boolean hasNext() {
+				return rows.hasNext();
+			}
+
+			public double[] next() {
+				double[] row = rows.next();
+				apply(row);
+				return row;
+			}
+		};
+	}
+}
@@ -0,0 +1,136 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * Keeps the cells outside the Java heap, row after row, in chunks of up to
+ * 1 GB, so that large datasets add nothing to the garbage collector's work.
+ * The chunks are direct buffers, or regions of a memory-mapped file when the
+ * storage is backed by one, in which case the operating system pages the data
+ * in and out and it may be larger than physical memory.
+ */
+public class OffHeapStorage extends MatrixStorage {
+
+	private static final long CHUNK_BYTES = 1 << 30;
+	private static final int INITIAL_ROWS = 64;
+
+	private final int cols;
+	private final int rowsPerChunk;
+	private int rows;
+	private final ArrayList<DoubleBuffer> chunks = new ArrayList<DoubleBuffer>();
+
+	// Where new chunks are mapped, or null to allocate them as direct buffers
+	private final FileChannel file;
+	private final long fileOffset;
+
+	// Creates rows x cols of zeros in direct memory
+	public OffHeapStorage(int rows, int cols) {
+		this(cols, null, 0);
+		double[] zeros = new double[cols];
+		for (int r = 0; r < rows; r++)
+			addRow(zeros);
+	}
+
+	// Creates an empty storage whose rows are written to file (which must be
+	// open for reading and writing) starting at offset. Whatever the file held
+	// there is overwritten.
+	public OffHeapStorage(int cols, FileChannel file, long offset) {
+		this.cols = cols;
+		this.rowsPerChunk = (int) Math.max(1, CHUNK_BYTES / Math.max(1, cols * 8L));
+		this.file = file;
+		this.fileOffset = offset;
+	}
+
+	// Returns a storage that reads the rows x cols little-endian doubles that
+	// start at offset in file. The mapping is copy-on-write: set changes only
+	// this storage's copy of a page, never the file, so any number of matrices
+	// can share one file. Rows added later go to direct memory.
+	static OffHeapStorage map(FileChannel file, long offset, int rows, int cols)
+			throws IOException {
+		return map(file, offset, rows, cols, FileChannel.MapMode.PRIVATE);
+	}
+
+	// Same as map, but the rows cannot be changed (set throws), and file only
+	// has to be open for reading
+	static OffHeapStorage mapReadOnly(FileChannel file, long offset, int rows,
+			int cols) throws IOException {
+		return map(file, offset, rows, cols, FileChannel.MapMode.READ_ONLY);
+	}
+
+	private static OffHeapStorage map(FileChannel file, long offset, int rows,
+			int cols, FileChannel.MapMode mode) throws IOException {
+		OffHeapStorage storage = new OffHeapStorage(cols, null, 0);
+		for (int r = 0; r < rows; r += storage.rowsPerChunk) {
+			int count = Math.min(storage.rowsPerChunk, rows - r);
+			storage.chunks.add(file.map(mode,
+					offset + (long) r * cols * 8, (long) count * cols * 8)
+					.order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer());
+		}
+		storage.rows = rows;
+		return storage;
+	}
+
+	int rows() { return rows; }
+
+	int cols() { return cols; }
+
+	double get(int r, int c) {
+		return chunks.get(r / rowsPerChunk).get((r % rowsPerChunk) * cols + c);
+	}
+
+	void set(int r, int c, double v) {
+		chunks.get(r / rowsPerChunk).put((r % rowsPerChunk) * cols + c, v);
+		modCount++;
+	}
+
+	void addRow(double[] row) {
+		int chunk = rows / rowsPerChunk;
+		int index = (rows % rowsPerChunk) * cols;
+		if (chunk == chunks.size())
+			chunks.add(newChunk(chunk, Math.min(rowsPerChunk, INITIAL_ROWS)));
+		else if (index + cols > chunks.get(chunk).capacity()) {
+			// Move the last chunk into a bigger one
+			DoubleBuffer old = chunks.get(chunk);
+			DoubleBuffer bigger = newChunk(chunk,
+					Math.min(rowsPerChunk, Math.max(INITIAL_ROWS, old.capacity() / cols * 2)));
+			bigger.put(0, old, 0, index);
+			chunks.set(chunk, bigger);
+		}
+		chunks.get(chunk).put(index, row, 0, cols);
+		rows++;
+		modCount++;
+	}
+
+	void swapRows(int a, int b) {
+		for (int c = 0; c < cols; c++) {
+			double tmp = get(a, c);
+			set(a, c, get(b, c));
+			set(b, c, tmp);
+		}
+	}
+
+	void copyRow(int r, double[] dest) {
+		chunks.get(r / rowsPerChunk).get((r % rowsPerChunk) * cols, dest, 0, cols);
+	}
+
+	// Returns a buffer with room for the given number of rows of chunk i
+	private DoubleBuffer newChunk(int i, int rowCount) {
+		if (file == null)
+			return ByteBuffer.allocateDirect(rowCount * cols * 8)
+					.order(ByteOrder.nativeOrder()).asDoubleBuffer();
+		// A file-backed chunk is mapped at full size right away; the file
+		// only takes up disk space where it has been written
+		try {
+			return file.map(FileChannel.MapMode.READ_WRITE,
+					fileOffset + i * (long) rowsPerChunk * cols * 8,
+					(long) rowsPerChunk * cols * 8).order(ByteOrder.nativeOrder())
+					.asDoubleBuffer();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
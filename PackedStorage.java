@@ -0,0 +1,106 @@
+/**
+ * Keeps every cell in a single contiguous double[], laid out either row after
+ * row or column after column. There is one heap object no matter how many
+ * rows there are, and in column-major order a column scan walks memory
+ * sequentially.
+ */
+public class PackedStorage extends MatrixStorage {
+
+	// The most elements a Java array can hold on common VMs
+	private static final int MAX_CELLS = Integer.MAX_VALUE - 8;
+
+	private final boolean columnMajor;
+	private final int cols;
+	private int rows;
+	private int capacity; // rows the array has room for
+	private double[] data;
+
+	public PackedStorage(int rows, int cols, boolean columnMajor) {
+		this.columnMajor = columnMajor;
+		this.cols = cols;
+		this.rows = rows;
+		this.capacity = Math.min(Math.max(rows, 16), maxRows());
+		if (rows > capacity)
+			throw new IllegalArgumentException(tooBig(rows));
+		this.data = new double[capacity * cols];
+	}
+
+	// Returns the most rows that fit in one array
+	private int maxRows() {
+		return MAX_CELLS / Math.max(1, cols);
+	}
+
+	private String tooBig(long rows) {
+		return rows + " rows of " + cols + " columns do not fit in one array;"
+				+ " use the off-heap layout";
+	}
+
+	boolean isColumnMajor() { return columnMajor; }
+
+	int rows() { return rows; }
+
+	int cols() { return cols; }
+
+	double get(int r, int c) {
+		return columnMajor ? data[c * capacity + r] : data[r * cols + c];
+	}
+
+	void set(int r, int c, double v) {
+		if (columnMajor)
+			data[c * capacity + r] = v;
+		else
+			data[r * cols + c] = v;
+		modCount++;
+	}
+
+	void addRow(double[] row) {
+		if (rows == capacity) {
+			if (capacity == maxRows())
+				throw new IllegalStateException(tooBig(rows + 1L));
+			grow((int) Math.min(capacity * 2L, maxRows()));
+		}
+		if (columnMajor) {
+			for (int c = 0; c < cols; c++)
+				data[c * capacity + rows] = row[c];
+		} else
+			System.arraycopy(row, 0, data, rows * cols, cols);
+		rows++;
+		modCount++;
+	}
+
+	void swapRows(int a, int b) {
+		for (int c = 0; c < cols; c++) {
+			double tmp = get(a, c);
+			set(a, c, get(b, c));
+			set(b, c, tmp);
+		}
+	}
+
+	void copyRow(int r, double[] dest) {
+		if (columnMajor) {
+			for (int c = 0; c < cols; c++)
+				dest[c] = data[c * capacity + r];
+		} else
+			System.arraycopy(data, r * cols, dest, 0, cols);
+	}
+
+	void copyColumn(int c, double[] dest) {
+		if (columnMajor)
+			System.arraycopy(data, c * capacity, dest, 0, rows);
+		else {
+			for (int r = 0, i = c; r < rows; r++, i += cols)
+				dest[r] = data[i];
+		}
+	}
+
+	private void grow(int newCapacity) {
+		double[] bigger = new double[newCapacity * cols];
+		if (columnMajor) {
+			for (int c = 0; c < cols; c++)
+				System.arraycopy(data, c * capacity, bigger, c * newCapacity, rows);
+		} else
+			System.arraycopy(data, 0, bigger, 0, rows * cols);
+		data = bigger;
+		capacity = newCapacity;
+	}
+}
@@ -0,0 +1,174 @@
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Parses the @DATA section of a large ARFF file on the common fork-join pool.
+ * The section is cut into byte ranges that start and end on line boundaries,
+ * each range is decoded and parsed by its own task, and the rows are then
+ * appended to the matrix in their original order.
+ */
+public class ParallelArffLoader {
+
+	private static final int CHUNKS_PER_THREAD = 4;
+	private static final long MIN_CHUNK_SIZE = 1 << 20;
+	private static final long MAX_CHUNK_SIZE = 1 << 28;
+	private static final long MAX_HEADER_SIZE = 1 << 30;
+
+	// Returns true if the default charset (the one loadArff reads with) keeps
+	// line breaks as single bytes, which is what splitting on bytes relies on
+	static boolean supportsDefaultCharset() {
+		Charset cs = Charset.defaultCharset();
+		return cs.equals(StandardCharsets.UTF_8)
+				|| cs.equals(StandardCharsets.ISO_8859_1)
+				|| cs.equals(StandardCharsets.US_ASCII);
+	}
+
+	// Parses the data section of filename and appends its rows to m. The
+	// attributes of m must already have been read from the header.
+	static void readData(Matrix m, String filename) throws Exception {
+		RandomAccessFile raf = new RandomAccessFile(filename, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			long start = findDataStart(channel, size);
+			if (start < 0)
+				return;
+
+			int parallelism = ForkJoinPool.commonPool().getParallelism();
+			long chunkSize = (size - start) / (parallelism * CHUNKS_PER_THREAD) + 1;
+			chunkSize = Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, chunkSize));
+
+			ArffParser.NominalTable[] tables = ArffParser.nominalTables(m);
+			List<Chunk> chunks = new ArrayList<Chunk>();
+			while (start < size) {
+				long end = nextLineStart(channel, Math.min(size, start + chunkSize), size);
+				chunks.add(new Chunk(channel, start, end, tables, m.cols()));
+				start = end;
+			}
+			ForkJoinTask.invokeAll(chunks);
+
+			double[] row = new double[m.cols()];
+			for (Chunk chunk : chunks) {
+				if (chunk.error != null)
+					throw chunk.error;
+				if (chunk.rows == null)
+					continue;
+				if (chunk.rows.isSparse() && m.rows() == 0)
+					m.preferSparse();
+				for (int r = 0; r < chunk.rows.rows(); r++) {
+					chunk.rows.copyRow(r, row);
+					m.m_storage.addRow(row);
+				}
+				chunk.rows = null;
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	// Returns the offset of the line after the @DATA line, or -1 if there is none
+	private static long findDataStart(FileChannel channel, long size) throws Exception {
+		ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+				Math.min(size, MAX_HEADER_SIZE));
+		int limit = header.limit();
+		int lineStart = 0;
+		for (int i = 0; i <= limit; i++) {
+			if (i < limit && header.get(i) != '\n' && header.get(i) != '\r')
+				continue;
+			int s = lineStart;
+			while (s < i && (header.get(s) & 0xff) <= ' ')
+				s++;
+			if (i - s >= 5 && header.get(s) == '@'
+					&& Character.toUpperCase(header.get(s + 1)) == 'D'
+					&& Character.toUpperCase(header.get(s + 2)) == 'A'
+					&& Character.toUpperCase(header.get(s + 3)) == 'T'
+					&& Character.toUpperCase(header.get(s + 4)) == 'A'
+					&& (i - s == 5 || (header.get(s + 5) & 0xff) <= ' '))
+				return Math.min(size, i + 1);
+			lineStart = i + 1;
+		}
+		return -1;
+	}
+
+	// Returns the offset just past the first '\n' at or after pos (or size if there is none)
+	private static long nextLineStart(FileChannel channel, long pos, long size)
+			throws Exception {
+		ByteBuffer buf = ByteBuffer.allocate(4096);
+		while (pos < size) {
+			buf.clear();
+			int n = channel.read(buf, pos);
+			if (n <= 0)
+				break;
+			for (int i = 0; i < n; i++) {
+				if (buf.get(i) == '\n')
+					return pos + i + 1;
+			}
+			pos += n;
+		}
+		return size;
+	}
+
+	/**
+	 * Decodes and parses one byte range of the data section.
+	 */
+	private static class Chunk extends RecursiveTask<Void> {
+		private static final long serialVersionUID = 1L;
+
+		private final FileChannel channel;
+		private final long start;
+		private final long end;
+		private final ArffParser.NominalTable[] tables;
+		private final int cols;
+		MatrixStorage rows; // packed row-major, or sparse if the chunk's first row is
+		Exception error;
+
+		Chunk(FileChannel channel, long start, long end,
+				ArffParser.NominalTable[] tables, int cols) {
+			this.channel = channel;
+			this.start = start;
+			this.end = end;
+			this.tables = tables;
+			this.cols = cols;
+		}
+
+		protected Void compute() {
+			try {
+				ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY,
+						start, end - start);
+				CharBuffer chars = Charset.defaultCharset().newDecoder()
+						.onMalformedInput(CodingErrorAction.REPLACE)
+						.onUnmappableCharacter(CodingErrorAction.REPLACE)
+						.decode(bytes);
+				char[] b = chars.array();
+				int limit = chars.arrayOffset() + chars.limit();
+				double[] row = new double[cols];
+				int lineStart = chars.arrayOffset() + chars.position();
+				for (int i = lineStart; i <= limit; i++) {
+					if (i < limit && b[i] != '\n' && b[i] != '\r')
+						continue;
+					int kind = ArffParser.parseRow(b, lineStart, i, tables, row);
+					if (kind != ArffParser.NO_ROW) {
+						if (rows == null)
+							rows = kind == ArffParser.SPARSE_ROW ? new SparseStorage(0, cols)
+									: new PackedStorage(0, cols, false);
+						rows.addRow(row);
+					}
+					lineStart = i + 1;
+				}
+			} catch (Exception e) {
+				error = e;
+			}
+			return null;
+		}
+	}
+}
@@ -3,6 +3,7 @@
 // See http://creativecommons.org/publicdomain/zero/1.0/
 // ----------------------------------------------------------------
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Random;
 
@@ -28,22 +29,44 @@ public class Perceptron extends SupervisedLearner {
 		}
 
 		double[] guessedLabels = new double[labels.cols()];
+		double[] row = new double[features.cols()];
+		boolean sparse = features.isSparse();
+		int[] indices = new int[features.cols()];
+		double[] values = new double[features.cols()];
 		double wrongGuesses = Integer.MAX_VALUE;
 		ArrayList<Double> epochAccuracies = new ArrayList<>();
+		int[] order = Matrix.identity(features.rows());
 
 		do {
 			wrongGuesses = 0;
 
-			features.shuffle(random, labels);
+			// Each epoch reshuffles the visiting order; the data itself is not moved
+			Matrix.shuffle(order, random);
 
-			for (int i = 0; i < features.rows(); i++) {
-				predict(features.row(i), guessedLabels);
+			for (int n = 0; n < order.length; n++) {
+				int i = order[n];
+				// A zero feature neither adds to the sum nor changes its weight,
+				// so sparse rows only visit their non-zero features
+				int nnz = 0;
+				if (sparse) {
+					nnz = features.copySparseRow(i, indices, values);
+					predictSparse(indices, values, nnz, row, guessedLabels);
+				} else {
+					features.copyRow(i, row);
+					predict(row, guessedLabels);
+				}
 				for (int j = 0; j < labels.cols(); j++) {
 					wrongGuesses += Math.abs(labels.get(i, j)
 							- guessedLabels[j]);
-					for (int k = 0; k < features.cols(); k++)
-						weights[j][k] += (labels.get(i, j) - guessedLabels[j])
-								* learningRate * features.get(i, k);
+					if (sparse) {
+						for (int k = 0; k < nnz; k++)
+							weights[j][indices[k]] += (labels.get(i, j) - guessedLabels[j])
+									* learningRate * values[k];
+					} else {
+						for (int k = 0; k < features.cols(); k++)
+							weights[j][k] += (labels.get(i, j) - guessedLabels[j])
+									* learningRate * row[k];
+					}
 					weights[j][weights[j].length - 1] += (labels.get(i, j) - guessedLabels[j])
 							* learningRate;
 				}
@@ -59,6 +82,19 @@ public class Perceptron extends SupervisedLearner {
 		System.out.println(epochAccuracies.size() + " epochs");
 	}
 
+	void writeModel(ModelFile.Writer out) throws IOException {
+		out.putInt(weights.length);
+		for (int i = 0; i < weights.length; i++)
+			out.putDoubles(weights[i]);
+	}
+
+	void readModel(ModelFile.Reader in, Matrix features, Matrix labels)
+			throws Exception {
+		weights = new double[in.getInt()][];
+		for (int i = 0; i < weights.length; i++)
+			weights[i] = in.getDoubles();
+	}
+
 	public void predict(double[] features, double[] labels) throws Exception {
 		for (int i = 0; i < labels.length; i++) {
 			double sum = 0;
@@ -69,4 +105,44 @@ public class Perceptron extends SupervisedLearner {
 		}
 	}
 
+	// Scores all the rows without a call per row
+	public void predictBatch(Matrix features, double[] out, int labelCount)
+			throws Exception {
+		boolean sparse = features.isSparse();
+		double[] row = new double[features.cols()];
+		int[] indices = new int[features.cols()];
+		double[] values = new double[features.cols()];
+		for (int r = 0; r < features.rows(); r++) {
+			int nnz = 0;
+			if (sparse)
+				nnz = features.copySparseRow(r, indices, values);
+			else
+				features.copyRow(r, row);
+			for (int i = 0; i < labelCount; i++) {
+				double[] w = weights[i];
+				double sum = 0;
+				if (sparse) {
+					for (int j = 0; j < nnz; j++)
+						sum += values[j] * w[indices[j]];
+				} else {
+					for (int j = 0; j < row.length; j++)
+						sum += row[j] * w[j];
+				}
+				sum += w[w.length - 1];
+				out[r * labelCount + i] = sum > 0 ? 1 : 0;
+			}
+		}
+	}
+
+	public void predictSparse(int[] indices, double[] values, int nnz,
+			double[] dense, double[] labels) throws Exception {
+		for (int i = 0; i < labels.length; i++) {
+			double sum = 0;
+			for (int j = 0; j < nnz; j++)
+				sum += values[j] * weights[i][indices[j]];
+			sum += weights[i][weights[i].length - 1];
+			labels[i] = sum > 0 ? 1 : 0;
+		}
+	}
+
 }
@@ -0,0 +1,316 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves predictions from a trained learner, so that scoring does not pay for
+ * JVM startup, parsing and training on every request. Clients send feature
+ * rows, one per line, in the ARFF data format (dense or sparse, nominal values
+ * by name, '?' for missing; no label column) and get one line back per row:
+ * the predicted label, by name if it is nominal, or "!error" and a message.
+ * The line "!stats" is answered with the latency and throughput counters.
+ *
+ * Rows from all connections go into one queue. A single thread takes whatever
+ * has queued up (up to SupervisedLearner.BATCH_ROWS rows) and predicts it with
+ * one predictBatch call, so batches grow with load without holding any request
+ * back to wait for others. If that call fails, the rows are predicted one at a
+ * time, so that only the rows the learner fails on are answered with errors.
+ * Each connection may send many rows before reading the answers, which come
+ * back in order.
+ *
+ * Connections are accepted on a TCP port of the loopback interface or on a
+ * Unix domain socket, or rows are read from stdin and answered on stdout.
+ */
+public class PredictionServer {
+
+	private static final int LATENCY_SAMPLES = 1 << 16; // recent latencies kept for percentiles
+
+	// Stands in the answer queue of a connection for "!stats", which is answered
+	// once the rows before it have been
+	private static final CompletableFuture<String> STATS = new CompletableFuture<String>();
+
+	private final SupervisedLearner learner;
+	private final Matrix features; // the attributes of the feature columns
+	private final Matrix labels; // the attributes of the label column
+	private final Normalizer normalizer; // scales the features, or null
+	private final ArffParser.NominalTable[] tables;
+	private final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<Request>();
+
+	// Counters, for "!stats"
+	private final long startTime = System.nanoTime();
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private long batches; // written by the batch thread only
+	private final long[] latencies = new long[LATENCY_SAMPLES]; // ring buffer, in nanoseconds
+	private long latencyCount;
+
+	// Serves learner, which must be trained on data with the attributes of
+	// features and labels. If normalizer is not null, it was fitted on the
+	// features followed by the label, and rows are scaled with it.
+	public PredictionServer(SupervisedLearner learner, Matrix features,
+			Matrix labels, Normalizer normalizer) {
+		this.learner = learner;
+		this.features = features;
+		this.labels = labels;
+		this.normalizer = normalizer;
+		this.tables = ArffParser.nominalTables(features);
+		Thread batcher = new Thread(new Runnable() {
+			public void run() {
+				predictBatches();
+			}
+		}, "prediction-batches");
+		batcher.setDaemon(true);
+		batcher.start();
+	}
+
+	// Accepts connections on the given TCP port of the loopback interface
+	// until the process is stopped
+	public void serveTcp(int port) throws IOException {
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+		serve(server);
+	}
+
+	// Accepts connections on a Unix domain socket at path (replacing any file
+	// there) until the process is stopped
+	public void serveUnix(String path) throws IOException {
+		Files.deleteIfExists(Path.of(path));
+		ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		server.bind(UnixDomainSocketAddress.of(path));
+		serve(server);
+	}
+
+	// Answers the rows of in on out until in ends
+	public void serve(InputStream in, OutputStream out) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in,
+				StandardCharsets.UTF_8));
+		Writer writer = new BufferedWriter(new OutputStreamWriter(out,
+				StandardCharsets.UTF_8));
+		// Answers not yet written, in the order of their rows
+		ArrayDeque<CompletableFuture<String>> pending = new ArrayDeque<CompletableFuture<String>>();
+		String line;
+		while ((line = reader.readLine()) != null) {
+			if (line.trim().equals("!stats")) {
+				pending.add(STATS);
+			} else {
+				CompletableFuture<String> answer = submit(line);
+				if (answer == null)
+					continue; // a blank line or a comment
+				pending.add(answer);
+			}
+			// Keep reading while the client has more rows ready, so that they
+			// can share batches; answer once it is waiting for us
+			if (!reader.ready() || pending.size() >= SupervisedLearner.BATCH_ROWS)
+				writeAnswers(pending, writer);
+		}
+		writeAnswers(pending, writer);
+	}
+
+	// Returns the counters as one line
+	public String stats() {
+		long[] sorted;
+		long batchCount;
+		synchronized (latencies) {
+			sorted = Arrays.copyOf(latencies, (int) Math.min(latencyCount, LATENCY_SAMPLES));
+			batchCount = batches;
+		}
+		Arrays.sort(sorted);
+		long count = requests.get();
+		double seconds = (System.nanoTime() - startTime) / 1e9;
+		return String.format("requests=%d errors=%d batches=%d rows/batch=%.1f"
+				+ " throughput=%.1f/s latency(us) p50=%.0f p90=%.0f p99=%.0f p99.9=%.0f max=%.0f",
+				count, errors.get(), batchCount,
+				batchCount == 0 ? 0.0 : (double) (count - errors.get()) / batchCount,
+				count / seconds, percentile(sorted, 0.5), percentile(sorted, 0.9),
+				percentile(sorted, 0.99), percentile(sorted, 0.999),
+				percentile(sorted, 1));
+	}
+
+	// Returns the value at fraction p of sorted, in microseconds
+	private static double percentile(long[] sorted, double p) {
+		if (sorted.length == 0)
+			return 0;
+		int i = (int) Math.ceil(p * sorted.length) - 1;
+		return sorted[Math.max(0, i)] / 1000.0;
+	}
+
+	private void serve(ServerSocketChannel server) throws IOException {
+		while (true) {
+			final SocketChannel client = server.accept();
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					try {
+						serve(Channels.newInputStream(client), Channels.newOutputStream(client));
+					} catch (IOException e) {
+						// The client went away; nothing to answer
+					} finally {
+						try {
+							client.close();
+						} catch (IOException e) {
+						}
+					}
+				}
+			}, "prediction-client");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	// Parses a line and queues it; returns null if the line holds no row
+	private CompletableFuture<String> submit(String line) {
+		Request request = new Request(new double[features.cols()]);
+		try {
+			char[] chars = line.toCharArray();
+			if (ArffParser.parseRow(chars, 0, chars.length, tables, request.row) == ArffParser.NO_ROW)
+				return null;
+		} catch (Exception e) {
+			requests.incrementAndGet();
+			errors.incrementAndGet();
+			return CompletableFuture.completedFuture("!error "
+					+ String.valueOf(e.getMessage()).replace('\n', ' '));
+		}
+		if (normalizer != null) {
+			for (int c = 0; c < request.row.length; c++)
+				request.row[c] = normalizer.apply(c, request.row[c]);
+		}
+		queue.add(request);
+		return request.answer;
+	}
+
+	private void writeAnswers(ArrayDeque<CompletableFuture<String>> pending,
+			Writer writer) throws IOException {
+		while (!pending.isEmpty()) {
+			CompletableFuture<String> answer = pending.poll();
+			String line;
+			if (answer == STATS)
+				line = stats();
+			else {
+				try {
+					line = answer.join();
+				} catch (CompletionException e) {
+					line = "!error " + e.getCause();
+				}
+			}
+			writer.write(line);
+			writer.write('\n');
+		}
+		writer.flush();
+	}
+
+	// Runs on the batch thread: predicts whatever has queued up, batch after batch
+	private void predictBatches() {
+		List<Request> batch = new ArrayList<Request>();
+		double[] predictions = new double[SupervisedLearner.BATCH_ROWS];
+		double[] prediction = new double[1];
+		while (true) {
+			batch.clear();
+			try {
+				batch.add(queue.take());
+			} catch (InterruptedException e) {
+				return;
+			}
+			queue.drainTo(batch, SupervisedLearner.BATCH_ROWS - 1);
+			try {
+				predictBatch(batch, predictions, prediction);
+			} catch (Throwable t) {
+				// Anything else (out of memory, say) fails this batch only; the
+				// thread must live on, or every client would wait forever
+				for (Request request : batch) {
+					if (request.answer.completeExceptionally(t)) {
+						requests.incrementAndGet();
+						errors.incrementAndGet();
+					}
+				}
+			}
+		}
+	}
+
+	// Predicts and answers one batch of requests
+	private void predictBatch(List<Request> batch, double[] predictions,
+			double[] prediction) {
+		Matrix rows = new Matrix(features, 0, 0, 0, features.cols());
+		for (Request request : batch)
+			rows.m_storage.addRow(request.row);
+		String[] answers = new String[batch.size()];
+		int failures = 0;
+		try {
+			learner.predictBatch(rows, predictions, 1);
+			for (int i = 0; i < answers.length; i++)
+				answers[i] = format(predictions[i]);
+		} catch (Exception e) {
+			// Find out which rows the learner fails on, so that only their
+			// clients get an error
+			for (int i = 0; i < answers.length; i++) {
+				answers[i] = predictOne(batch.get(i).row, prediction);
+				if (answers[i].startsWith("!error"))
+					failures++;
+			}
+		}
+		long now = System.nanoTime();
+		synchronized (latencies) {
+			batches++;
+			for (Request request : batch)
+				latencies[(int) (latencyCount++ % LATENCY_SAMPLES)] = now - request.time;
+		}
+		requests.addAndGet(batch.size());
+		errors.addAndGet(failures);
+		for (int i = 0; i < batch.size(); i++)
+			batch.get(i).answer.complete(answers[i]);
+	}
+
+	// Predicts a single row, answering with an error if the learner fails on it
+	private String predictOne(double[] row, double[] prediction) {
+		prediction[0] = 0; // make sure the prediction is not biassed by the last row's
+		try {
+			learner.predict(row, prediction);
+			return format(prediction[0]);
+		} catch (Exception e) {
+			return "!error " + e;
+		}
+	}
+
+	// Returns a prediction as the client should see it
+	private String format(double label) {
+		if (label == Matrix.MISSING)
+			return "?";
+		if (labels.valueCount(0) > 0)
+			return label >= 0 && label < labels.valueCount(0) ? labels.attrValue(0, (int) label) : "?";
+		return Double.toString(label);
+	}
+
+	/**
+	 * A row waiting for its prediction
+	 */
+	private static class Request {
+		final double[] row;
+		final long time = System.nanoTime();
+		final CompletableFuture<String> answer = new CompletableFuture<String>();
+
+		Request(double[] row) {
+			this.row = row;
+		}
+	}
+}
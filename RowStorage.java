@@ -0,0 +1,47 @@
+import java.util.ArrayList;
+
+/**
+ * The original Matrix layout: one double[] per row. row() hands out the live
+ * array, so writes to it change the matrix.
+ */
+public class RowStorage extends MatrixStorage {
+
+	private final int cols;
+	private final ArrayList<double[]> data;
+
+	public RowStorage(int rows, int cols) {
+		this.cols = cols;
+		data = new ArrayList<double[]>(rows);
+		for (int i = 0; i < rows; i++)
+			data.add(new double[cols]);
+	}
+
+	int rows() { return data.size(); }
+
+	int cols() { return cols; }
+
+	double get(int r, int c) { return data.get(r)[c]; }
+
+	void set(int r, int c, double v) {
+		data.get(r)[c] = v;
+		modCount++;
+	}
+
+	double[] row(int r) { return data.get(r); }
+
+	void copyRow(int r, double[] dest) { System.arraycopy(data.get(r), 0, dest, 0, cols); }
+
+	void addRow(double[] row) {
+		double[] copy = new double[cols];
+		System.arraycopy(row, 0, copy, 0, cols);
+		data.add(copy);
+		modCount++;
+	}
+
+	void swapRows(int a, int b) {
+		double[] tmp = data.get(a);
+		data.set(a, data.get(b));
+		data.set(b, tmp);
+		modCount++;
+	}
+}
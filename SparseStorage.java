@@ -0,0 +1,136 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Keeps each row as parallel arrays of column indices and values, listing only
+ * the non-zero cells. Meant for datasets that are mostly zeros, such as those
+ * written in sparse ARFF. Missing values count as non-zero.
+ */
+public class SparseStorage extends MatrixStorage {
+
+	private static final int[] NO_INDICES = new int[0];
+	private static final double[] NO_VALUES = new double[0];
+
+	private final int cols;
+	private final ArrayList<int[]> indices; // ascending column indices of each row
+	private final ArrayList<double[]> values;
+
+	public SparseStorage(int rows, int cols) {
+		this.cols = cols;
+		indices = new ArrayList<int[]>(rows);
+		values = new ArrayList<double[]>(rows);
+		for (int i = 0; i < rows; i++) {
+			indices.add(NO_INDICES);
+			values.add(NO_VALUES);
+		}
+	}
+
+	boolean isSparse() { return true; }
+
+	int rows() { return indices.size(); }
+
+	int cols() { return cols; }
+
+	double get(int r, int c) {
+		int i = Arrays.binarySearch(indices.get(r), c);
+		return i >= 0 ? values.get(r)[i] : 0;
+	}
+
+	void set(int r, int c, double v) {
+		modCount++;
+		int[] idx = indices.get(r);
+		double[] val = values.get(r);
+		int i = Arrays.binarySearch(idx, c);
+		if (i >= 0) {
+			if (v != 0)
+				val[i] = v;
+			else {
+				// Drop the entry
+				int[] newIdx = new int[idx.length - 1];
+				double[] newVal = new double[val.length - 1];
+				System.arraycopy(idx, 0, newIdx, 0, i);
+				System.arraycopy(idx, i + 1, newIdx, i, idx.length - i - 1);
+				System.arraycopy(val, 0, newVal, 0, i);
+				System.arraycopy(val, i + 1, newVal, i, val.length - i - 1);
+				indices.set(r, newIdx);
+				values.set(r, newVal);
+			}
+		} else if (v != 0) {
+			// Insert an entry, keeping the indices sorted
+			i = -i - 1;
+			int[] newIdx = new int[idx.length + 1];
+			double[] newVal = new double[val.length + 1];
+			System.arraycopy(idx, 0, newIdx, 0, i);
+			System.arraycopy(idx, i, newIdx, i + 1, idx.length - i);
+			System.arraycopy(val, 0, newVal, 0, i);
+			System.arraycopy(val, i, newVal, i + 1, val.length - i);
+			newIdx[i] = c;
+			newVal[i] = v;
+			indices.set(r, newIdx);
+			values.set(r, newVal);
+		}
+	}
+
+	void addRow(double[] row) {
+		int nnz = 0;
+		for (int c = 0; c < cols; c++) {
+			if (row[c] != 0)
+				nnz++;
+		}
+		int[] idx = new int[nnz];
+		double[] val = new double[nnz];
+		for (int c = 0, i = 0; c < cols; c++) {
+			if (row[c] != 0) {
+				idx[i] = c;
+				val[i] = row[c];
+				i++;
+			}
+		}
+		indices.add(idx);
+		values.add(val);
+		modCount++;
+	}
+
+	void swapRows(int a, int b) {
+		int[] tmpIdx = indices.get(a);
+		indices.set(a, indices.get(b));
+		indices.set(b, tmpIdx);
+		double[] tmpVal = values.get(a);
+		values.set(a, values.get(b));
+		values.set(b, tmpVal);
+		modCount++;
+	}
+
+	void copyRow(int r, double[] dest) {
+		Arrays.fill(dest, 0, cols, 0);
+		int[] idx = indices.get(r);
+		double[] val = values.get(r);
+		for (int i = 0; i < idx.length; i++)
+			dest[idx[i]] = val[i];
+	}
+
+	int copySparseRow(int r, int[] destIndices, double[] destValues) {
+		int[] idx = indices.get(r);
+		System.arraycopy(idx, 0, destIndices, 0, idx.length);
+		System.arraycopy(values.get(r), 0, destValues, 0, idx.length);
+		return idx.length;
+	}
+
+	// Copies the entries of row r that fall in columns [colStart, colStart +
+	// colCount), shifted down by colStart, and returns how many there are
+	int copySparseRow(int r, int colStart, int colCount, int[] destIndices,
+			double[] destValues) {
+		int[] idx = indices.get(r);
+		double[] val = values.get(r);
+		int n = 0;
+		for (int i = 0; i < idx.length; i++) {
+			int c = idx[i] - colStart;
+			if (c >= 0 && c < colCount) {
+				destIndices[n] = c;
+				destValues[n] = val[i];
+				n++;
+			}
+		}
+		return n;
+	}
+}
@@ -5,10 +5,15 @@
 
 import java.util.ArrayList;
 import java.util.Scanner;
+import java.util.concurrent.RecursiveTask;
 import java.io.File;
+import java.io.IOException;
 
 public abstract class SupervisedLearner {
 
+	// Rows measureAccuracy hands to predictBatch at a time
+	static final int BATCH_ROWS = 256;
+
 	// Before you call this method, you need to divide your data
 	// into a feature matrix and a label matrix.
 	public abstract void train(Matrix features, Matrix labels) throws Exception;
@@ -16,8 +21,77 @@ public abstract class SupervisedLearner {
 	// A feature vector goes in. A label vector comes out. (Some supervised
 	// learning algorithms only support one-dimensional label vectors. Some
 	// support multi-dimensional label vectors.)
+	// Once the model is trained, predict, predictSparse and predictBatch must be
+	// reentrant: they may be called from many threads at once, so they must not
+	// write to the learner's fields (keep scratch space in local variables).
+	// The parallel measureAccuracy relies on this.
 	public abstract void predict(double[] features, double[] labels) throws Exception;
 
+	// Writes what predict needs of the trained model, for ModelFile.save.
+	// Learners that can be saved override this and readModel.
+	void writeModel(ModelFile.Writer out) throws IOException
+	{
+		throw new UnsupportedOperationException(getClass().getName() + " cannot be saved");
+	}
+
+	// Reads a model written by writeModel, leaving the learner ready to predict.
+	// features and labels are empty matrices with the attributes the model was
+	// trained with.
+	void readModel(ModelFile.Reader in, Matrix features, Matrix labels) throws Exception
+	{
+		throw new UnsupportedOperationException(getClass().getName() + " cannot be loaded");
+	}
+
+	// Predicts from a sparse feature vector: the first nnz entries of values are
+	// the features at the columns listed in indices, and every other feature is
+	// zero. dense is scratch space for one full feature vector. Learners that
+	// can skip the zeros override this; by default the vector is expanded into
+	// dense and passed to predict.
+	public void predictSparse(int[] indices, double[] values, int nnz, double[] dense, double[] labels) throws Exception
+	{
+		for(int i = 0; i < dense.length; i++)
+			dense[i] = 0;
+		for(int i = 0; i < nnz; i++)
+			dense[indices[i]] = values[i];
+		predict(dense, labels);
+	}
+
+	// Predicts every row of features, putting the labels of row i in out[i]
+	public void predictBatch(Matrix features, double[][] out) throws Exception
+	{
+		int labelCount = features.rows() == 0 ? 0 : out[0].length;
+		double[] flat = new double[features.rows() * labelCount];
+		predictBatch(features, flat, labelCount);
+		for(int i = 0; i < features.rows(); i++)
+			System.arraycopy(flat, i * labelCount, out[i], 0, labelCount);
+	}
+
+	// Predicts every row of features, putting the labelCount labels of row i in
+	// out[i * labelCount] to out[(i + 1) * labelCount - 1]. By default each row
+	// goes through predict (or predictSparse); learners that can work on many
+	// rows at once override this.
+	public void predictBatch(Matrix features, double[] out, int labelCount) throws Exception
+	{
+		boolean sparse = features.isSparse();
+		int[] indices = sparse ? new int[features.cols()] : null;
+		double[] values = sparse ? new double[features.cols()] : null;
+		double[] feat = new double[features.cols()];
+		double[] labels = new double[labelCount];
+		for(int i = 0; i < features.rows(); i++)
+		{
+			for(int j = 0; j < labelCount; j++)
+				labels[j] = 0.0; // make sure the prediction is not biassed by a previous prediction
+			if(sparse)
+				predictSparse(indices, values, features.copySparseRow(i, indices, values), feat, labels);
+			else
+			{
+				features.copyRow(i, feat);
+				predict(feat, labels);
+			}
+			System.arraycopy(labels, 0, out, i * labelCount, labelCount);
+		}
+	}
+
 	// The model must be trained before you call this method. If the label is nominal,
 	// it returns the predictive accuracy. If the label is continuous, it returns
 	// the root mean squared error (RMSE). If confusion is non-NULL, and the
@@ -31,19 +105,20 @@ public abstract class SupervisedLearner {
 		if(features.rows() == 0)
 			throw(new Exception("Expected at least one row"));
 
+		// The rows are predicted a block at a time
+		double[] predictions = new double[BATCH_ROWS];
+
 		int labelValues = labels.valueCount(0);
 		if(labelValues == 0) // If the label is continuous...
 		{
 			// The label is continuous, so measure root mean squared error
-			double[] pred = new double[1];
 			double sse = 0.0;
 			for(int i = 0; i < features.rows(); i++)
 			{
-				double[] feat = features.row(i);
-				double[] targ = labels.row(i);
-				pred[0] = 0.0; // make sure the prediction is not biassed by a previous prediction
-				predict(feat, pred);
-				double delta = targ[0] - pred[0];
+				if(i % BATCH_ROWS == 0)
+					predictBlock(features, i, predictions);
+				double targ = labels.get(i, 0);
+				double delta = targ - predictions[i % BATCH_ROWS];
 				sse += (delta * delta);
 			}
 			return Math.sqrt(sse / features.rows());
@@ -58,17 +133,21 @@ public abstract class SupervisedLearner {
 					confusion.setAttrName(i, labels.attrValue(0, i));
 			}
 			int correctCount = 0;
-			double[] prediction = new double[1];
 			for(int i = 0; i < features.rows(); i++)
 			{
-				double[] feat = features.row(i);
+				if(i % BATCH_ROWS == 0)
+					predictBlock(features, i, predictions);
 				int targ = (int)labels.get(i, 0);
 				if(targ >= labelValues)
 					throw new Exception("The label is out of range");
-				predict(feat, prediction);
-				int pred = (int)prediction[0];
+				double prediction = predictions[i % BATCH_ROWS];
+				int pred = (int)prediction;
 				if(confusion != null)
+				{
+					if(prediction < 0 || prediction >= labelValues)
+						throw new Exception("The prediction is out of range");
 					confusion.set(targ, pred, confusion.get(targ, pred) + 1);
+				}
 				if(pred == targ)
 					correctCount++;
 			}
@@ -76,4 +155,143 @@ public abstract class SupervisedLearner {
 		}
 	}
 
+	// Same as measureAccuracy(features, labels, confusion), but if parallel is
+	// true the rows are split into blocks that are predicted and scored on the
+	// common fork-join pool. Each task counts its own hits, squared errors and
+	// confusion cells, and the counts are merged up a tree that depends only on
+	// the number of rows, so the result does not depend on the number of
+	// threads. Counts match the sequential method exactly, but the squared
+	// errors are summed in a different order, so an RMSE may differ from it
+	// in the last bits.
+	public double measureAccuracy(Matrix features, Matrix labels, Matrix confusion, boolean parallel) throws Exception
+	{
+		if(!parallel)
+			return measureAccuracy(features, labels, confusion);
+		if(features.rows() != labels.rows())
+			throw(new Exception("Expected the features and labels to have the same number of rows"));
+		if(labels.cols() != 1)
+			throw(new Exception("Sorry, this method currently only supports one-dimensional labels"));
+		if(features.rows() == 0)
+			throw(new Exception("Expected at least one row"));
+
+		int labelValues = labels.valueCount(0);
+		Tally tally = new AccuracyTask(features, labels, labelValues, confusion != null, 0, features.rows()).invoke();
+		if(tally.error != null)
+			throw tally.error;
+		if(labelValues == 0)
+			return Math.sqrt(tally.sse / features.rows());
+		if(confusion != null)
+		{
+			confusion.setSize(labelValues, labelValues);
+			for(int i = 0; i < labelValues; i++)
+			{
+				confusion.setAttrName(i, labels.attrValue(0, i));
+				for(int j = 0; j < labelValues; j++)
+					confusion.set(i, j, tally.confusion[i * labelValues + j]);
+			}
+		}
+		return (double)tally.correctCount / features.rows();
+	}
+
+	// What one AccuracyTask counted over its rows
+	private static class Tally
+	{
+		long correctCount;
+		double sse;
+		long[] confusion; // row-major, labelValues x labelValues, or null if not wanted
+		Exception error; // the first thing that went wrong, if anything
+
+		// Adds the counts of a tally over later rows
+		void merge(Tally other)
+		{
+			if(error == null)
+				error = other.error;
+			correctCount += other.correctCount;
+			sse += other.sse;
+			if(confusion != null)
+			{
+				for(int i = 0; i < confusion.length; i++)
+					confusion[i] += other.confusion[i];
+			}
+		}
+	}
+
+	// Predicts and scores rows from to to - 1, splitting at BATCH_ROWS boundaries
+	// so that the blocks are the same whatever the pool does
+	private class AccuracyTask extends RecursiveTask<Tally>
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final Matrix features;
+		private final Matrix labels;
+		private final int labelValues;
+		private final boolean countConfusion;
+		private final int from;
+		private final int to;
+
+		AccuracyTask(Matrix features, Matrix labels, int labelValues, boolean countConfusion, int from, int to)
+		{
+			this.features = features;
+			this.labels = labels;
+			this.labelValues = labelValues;
+			this.countConfusion = countConfusion;
+			this.from = from;
+			this.to = to;
+		}
+
+		protected Tally compute()
+		{
+			if(to - from > BATCH_ROWS)
+			{
+				int mid = from + ((to - from) / BATCH_ROWS + 1) / 2 * BATCH_ROWS;
+				AccuracyTask right = new AccuracyTask(features, labels, labelValues, countConfusion, mid, to);
+				right.fork();
+				Tally tally = new AccuracyTask(features, labels, labelValues, countConfusion, from, mid).compute();
+				tally.merge(right.join());
+				return tally;
+			}
+			Tally tally = new Tally();
+			if(labelValues > 0 && countConfusion)
+				tally.confusion = new long[labelValues * labelValues];
+			try
+			{
+				double[] predictions = new double[BATCH_ROWS];
+				predictBlock(features, from, predictions);
+				for(int i = from; i < to; i++)
+				{
+					double pred = predictions[i - from];
+					if(labelValues == 0)
+					{
+						double delta = labels.get(i, 0) - pred;
+						tally.sse += (delta * delta);
+						continue;
+					}
+					int targ = (int)labels.get(i, 0);
+					if(targ >= labelValues)
+						throw new Exception("The label is out of range");
+					if(tally.confusion != null)
+					{
+						if(pred < 0 || pred >= labelValues)
+							throw new Exception("The prediction is out of range");
+						tally.confusion[targ * labelValues + (int)pred]++;
+					}
+					if((int)pred == targ)
+						tally.correctCount++;
+				}
+			}
+			catch(Exception e)
+			{
+				tally.error = e;
+			}
+			return tally;
+		}
+	}
+
+	// Predicts the (one-dimensional) labels of the block of up to BATCH_ROWS rows that starts at row start
+	private void predictBlock(Matrix features, int start, double[] predictions) throws Exception
+	{
+		int count = Math.min(BATCH_ROWS, features.rows() - start);
+		predictBatch(features.view(start, 0, count, features.cols()), predictions, 1);
+	}
+
 }
@@ -0,0 +1,117 @@
+/**
+ * A window onto another storage: a range or list of its rows and a range of
+ * its columns. Reads and writes go straight through to the parent, so making
+ * a view costs no copying of cells. Shuffling a view only reorders the view's
+ * own row index, never the parent's rows.
+ */
+public class ViewStorage extends MatrixStorage {
+
+	private final MatrixStorage parent;
+	private int[] rowIndex; // parent row of each view row, or null for a contiguous range
+	private final int rowStart;
+	private final int rowCount;
+	private final int colStart;
+	private final int colCount;
+
+	// A view of rowCount rows starting at rowStart
+	public ViewStorage(MatrixStorage parent, int rowStart, int rowCount,
+			int colStart, int colCount) {
+		this(parent, null, rowStart, rowCount, colStart, colCount);
+	}
+
+	// A view of the listed rows, in the order given. The list is copied, since
+	// shuffling the view reorders it.
+	public ViewStorage(MatrixStorage parent, int[] rows, int colStart,
+			int colCount) {
+		this(parent, rows.clone(), 0, rows.length, colStart, colCount);
+	}
+
+	private ViewStorage(MatrixStorage parent, int[] rows, int rowStart,
+			int rowCount, int colStart, int colCount) {
+		if (colStart < 0 || colStart + colCount > parent.cols())
+			throw new IndexOutOfBoundsException("columns " + colStart + " to "
+					+ (colStart + colCount) + " are out of range");
+		if (rows == null && (rowStart < 0 || rowStart + rowCount > parent.rows()))
+			throw new IndexOutOfBoundsException("rows " + rowStart + " to "
+					+ (rowStart + rowCount) + " are out of range");
+
+		// A view of a view reads straight from the underlying storage
+		if (parent instanceof ViewStorage) {
+			ViewStorage p = (ViewStorage) parent;
+			if (rows == null && p.rowIndex == null)
+				rowStart += p.rowStart;
+			else {
+				int[] mapped = new int[rowCount];
+				for (int i = 0; i < rowCount; i++)
+					mapped[i] = p.parentRow(rows == null ? rowStart + i : rows[i]);
+				rows = mapped;
+				rowStart = 0;
+			}
+			colStart += p.colStart;
+			parent = p.parent;
+		}
+
+		this.parent = parent;
+		this.rowIndex = rows;
+		this.rowStart = rowStart;
+		this.rowCount = rowCount;
+		this.colStart = colStart;
+		this.colCount = colCount;
+	}
+
+	// Returns the row of the parent storage that backs view row r
+	int parentRow(int r) {
+		if (r < 0 || r >= rowCount)
+			throw new IndexOutOfBoundsException("Index " + r
+					+ " out of bounds for length " + rowCount);
+		return rowIndex == null ? rowStart + r : rowIndex[r];
+	}
+
+	// Changes to the parent count as changes to the view, as do reorderings of the view
+	int modCount() { return parent.modCount() + modCount; }
+
+	int rows() { return rowCount; }
+
+	int cols() { return colCount; }
+
+	double get(int r, int c) { return parent.get(parentRow(r), colStart + c); }
+
+	void set(int r, int c, double v) { parent.set(parentRow(r), colStart + c, v); }
+
+	double[] row(int r) {
+		if (colStart == 0 && colCount == parent.cols())
+			return parent.row(parentRow(r));
+		return super.row(r);
+	}
+
+	void copyRow(int r, double[] dest) {
+		int p = parentRow(r);
+		for (int c = 0; c < colCount; c++)
+			dest[c] = parent.get(p, colStart + c);
+	}
+
+	boolean isSparse() { return parent.isSparse(); }
+
+	int copySparseRow(int r, int[] indices, double[] values) {
+		if (parent instanceof SparseStorage)
+			return ((SparseStorage) parent).copySparseRow(parentRow(r),
+					colStart, colCount, indices, values);
+		return super.copySparseRow(r, indices, values);
+	}
+
+	void addRow(double[] row) {
+		throw new UnsupportedOperationException("Cannot add rows to a view");
+	}
+
+	void swapRows(int a, int b) {
+		if (rowIndex == null) {
+			rowIndex = new int[rowCount];
+			for (int i = 0; i < rowCount; i++)
+				rowIndex[i] = rowStart + i;
+		}
+		int tmp = rowIndex[a];
+		rowIndex[a] = rowIndex[b];
+		rowIndex[b] = tmp;
+		modCount++;
+	}
+}
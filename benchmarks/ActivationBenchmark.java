@@ -0,0 +1,102 @@
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times the activations, alone on a spread of weighted sums and as the hidden
+ * layer activation of a NeuralNet trained on vowel.arff. "pow" is the sigmoid
+ * as NeuralNet used to compute it, through Math.pow. Running main instead of
+ * the benchmarks prints how far the faster sigmoids are from the exact one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ActivationBenchmark {
+
+	private static final int SUMS = 4096;
+
+	static final Activation POW = new Activation() {
+		public String name() { return "pow"; }
+
+		public double apply(double x) {
+			return 1 / (1 + Math.pow(Math.E, -x));
+		}
+
+		public double derivative(double y) {
+			return y * (1 - y);
+		}
+	};
+
+	@Param({ "pow", "sigmoid", "sigmoid-table", "tanh", "relu" })
+	public String activationName;
+
+	private Activation activation;
+	private double[] sums;
+	private Matrix features;
+	private Matrix labels;
+
+	@Setup
+	public void setUp() throws Exception {
+		activation = activationName.equals("pow") ? POW : Activation.forName(activationName);
+		// Mostly in [-8, 8], as hidden layers' sums are
+		Random random = new Random(1);
+		sums = new double[SUMS];
+		for (int i = 0; i < SUMS; i++)
+			sums[i] = random.nextGaussian() * 4;
+		Matrix data = new Matrix();
+		data.load("vowel.arff");
+		features = new Matrix(data, 0, 0, data.rows(), data.cols() - 1);
+		labels = new Matrix(data, 0, data.cols() - 1, data.rows(), 1);
+	}
+
+	@Benchmark
+	public double apply() {
+		double total = 0;
+		for (int i = 0; i < SUMS; i++)
+			total += activation.apply(sums[i]);
+		return total;
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public NeuralNet train() throws Exception {
+		NeuralNet net = new NeuralNet(new Random(1));
+		net.setActivation(activation);
+		net.train(features, labels);
+		return net;
+	}
+
+	// Prints the largest difference from the exact sigmoid of the Math.pow and
+	// table sigmoids over [-40, 40]
+	public static void main(String[] args) {
+		Activation[] approximations = { POW, Activation.SIGMOID_TABLE };
+		for (Activation a : approximations) {
+			double maxError = 0;
+			double worst = 0;
+			for (int i = -400000; i <= 400000; i++) {
+				double x = i / 10000.0;
+				double error = Math.abs(a.apply(x) - Activation.SIGMOID.apply(x));
+				if (error > maxError) {
+					maxError = error;
+					worst = x;
+				}
+			}
+			System.out.println(String.format("%-14s max error %.3g at %.4f", a.name(),
+					maxError, worst));
+		}
+	}
+}
@@ -0,0 +1,59 @@
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times parsing the bundled datasets with Matrix.loadArff (straight from the
+ * text, not through the binary cache that Matrix.load uses) and scaling them
+ * with Matrix.normalize.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ArffBenchmark {
+
+	@Param({ "mt_train.arff", "vowel.arff", "cars.arff", "sponge.arff" })
+	public String dataset;
+
+	private Matrix loaded; // parsed once, for normalize
+	private Matrix data; // a fresh copy of loaded for each call of normalize
+
+	@Setup(Level.Trial)
+	public void load() throws Exception {
+		loaded = new Matrix();
+		loaded.loadArff(dataset);
+	}
+
+	// normalize scales the matrix in place, so every call gets its own copy
+	@Setup(Level.Invocation)
+	public void copy() {
+		data = new Matrix(loaded, 0, 0, loaded.rows(), loaded.cols());
+	}
+
+	@Benchmark
+	public Matrix loadArff() throws Exception {
+		Matrix m = new Matrix();
+		m.loadArff(dataset);
+		return m;
+	}
+
+	@Benchmark
+	public Matrix normalize() {
+		data.normalize();
+		return data;
+	}
+}
@@ -0,0 +1,32 @@
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH benchmarks with the GC profiler, which adds the bytes allocated
+ * per operation and the collection counts to each result. These numbers are
+ * the baseline that changes to the loader and the learners are measured
+ * against.
+ *
+ * The benchmarks are compiled together with the project sources, with
+ * jmh-core and jmh-generator-annprocess (and their dependencies) on the class
+ * path, so that the annotation processor generates the benchmark harness:
+ *
+ *   javac -cp "jmh/*" -d bin *.java benchmarks/*.java
+ *   java -cp "bin:jmh/*" BenchmarkMain [regex]
+ *
+ * Run it from the project directory, where the datasets are. The optional
+ * regex picks the benchmarks to run (for example "LearnerBenchmark.train");
+ * by default all of them run.
+ */
+public class BenchmarkMain {
+
+	public static void main(String[] args) throws Exception {
+		Options options = new OptionsBuilder()
+				.include(args.length > 0 ? args[0] : "Benchmark")
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(options).run();
+	}
+}
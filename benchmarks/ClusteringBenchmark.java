@@ -0,0 +1,63 @@
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times one k-means iteration of Clustering (moving the centroids, then
+ * assigning every row to the closest one) on sponge.arff with k = 4. Every call
+ * starts from the assignment the first iteration of Clustering.main makes, so
+ * all calls do the same work.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClusteringBenchmark {
+
+	private static final int K = 4;
+
+	private int[] start; // the clusters after the first iteration
+	private int[] clusters;
+	private double[][] centroids;
+	private boolean[] centroidsComplete;
+	private int[] numInstances;
+	private double[] sses;
+
+	@Setup
+	public void setUp() throws Exception {
+		Matrix data = new Matrix();
+		data.load("sponge.arff");
+		Clustering.setData(data);
+		centroids = new double[K][data.cols()];
+		centroidsComplete = new boolean[K];
+		numInstances = new int[K];
+		sses = new double[K];
+		// As in Clustering.main, the first k rows start out as the clusters
+		start = new int[data.rows()];
+		for (int r = 0; r < start.length; r++)
+			start[r] = r < K ? r : -1;
+		Clustering.computeCentroids(start, centroids, centroidsComplete);
+		Clustering.assignClusters(centroids, centroidsComplete, start,
+				numInstances, sses);
+		clusters = new int[start.length];
+	}
+
+	@Benchmark
+	public double iteration() {
+		System.arraycopy(start, 0, clusters, 0, start.length);
+		Clustering.computeCentroids(clusters, centroids, centroidsComplete);
+		return Clustering.assignClusters(centroids, centroidsComplete, clusters,
+				numInstances, sses);
+	}
+}
@@ -0,0 +1,92 @@
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Times training each learner, and predicting every row of its training data
+ * with it, one row at a time and in batches. Each learner gets the bundled
+ * dataset it is usually run on; the learners are made by
+ * MLSystemManager.getLearner with a fixed seed, so every fork trains the same
+ * model.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LearnerBenchmark {
+
+	private static final long SEED = 133133819;
+
+	@Param({ "baseline", "perceptron", "neuralnet", "decisiontree", "knn" })
+	public String learnerName;
+
+	private Matrix features;
+	private Matrix labels;
+	private SupervisedLearner trained; // for the predict benchmarks
+	private double[] predictions;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		Matrix data = new Matrix();
+		data.load(dataset(learnerName));
+		features = new Matrix(data, 0, 0, data.rows(), data.cols() - 1);
+		labels = new Matrix(data, 0, data.cols() - 1, data.rows(), 1);
+		trained = newLearner();
+		trained.train(features, labels);
+		predictions = new double[features.rows()];
+	}
+
+	@Benchmark
+	public SupervisedLearner train() throws Exception {
+		SupervisedLearner learner = newLearner();
+		learner.train(features, labels);
+		return learner;
+	}
+
+	@Benchmark
+	public void predict(Blackhole blackhole) throws Exception {
+		double[] row = new double[features.cols()];
+		double[] prediction = new double[1];
+		for (int r = 0; r < features.rows(); r++) {
+			features.copyRow(r, row);
+			trained.predict(row, prediction);
+			blackhole.consume(prediction[0]);
+		}
+	}
+
+	@Benchmark
+	public double[] predictBatch() throws Exception {
+		trained.predictBatch(features, predictions, 1);
+		return predictions;
+	}
+
+	private SupervisedLearner newLearner() throws Exception {
+		return new MLSystemManager().getLearner(learnerName, new Random(SEED));
+	}
+
+	// The dataset each learner is benchmarked on
+	private static String dataset(String learnerName) {
+		if (learnerName.equals("perceptron"))
+			return "votingMissingValuesReplaced.arff";
+		if (learnerName.equals("neuralnet"))
+			return "iris.arff";
+		if (learnerName.equals("decisiontree"))
+			return "cars.arff";
+		return "vowel.arff";
+	}
+}
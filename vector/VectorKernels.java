@@ -0,0 +1,69 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Kernels written with the incubating Vector API, a full SIMD register of
+ * doubles at a time (4 with AVX2, 8 with AVX-512), with plain loops for the
+ * remainder. Kernels loads this class by name when it can, so it only has to
+ * be on the class path. It is built on top of the main classes:
+ *
+ *   javac --add-modules jdk.incubator.vector -cp bin -d bin vector/VectorKernels.java
+ *   java --add-modules jdk.incubator.vector -cp bin MLSystemManager ...
+ */
+public class VectorKernels extends Kernels {
+
+	private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+	public String name() {
+		return "vector (" + SPECIES.length() + " doubles)";
+	}
+
+	// Keeps one partial sum per lane and adds them up at the end
+	double dot(double[] a, int aOffset, double[] b, int bOffset, int n) {
+		DoubleVector sums = DoubleVector.zero(SPECIES);
+		int i = 0;
+		for (int bound = SPECIES.loopBound(n); i < bound; i += SPECIES.length()) {
+			DoubleVector x = DoubleVector.fromArray(SPECIES, a, aOffset + i);
+			DoubleVector y = DoubleVector.fromArray(SPECIES, b, bOffset + i);
+			sums = x.fma(y, sums);
+		}
+		double sum = sums.reduceLanes(VectorOperators.ADD);
+		for (; i < n; i++)
+			sum += a[aOffset + i] * b[bOffset + i];
+		return sum;
+	}
+
+	void addScaled(double alpha, double[] x, int xOffset, double[] y,
+			int yOffset, int n) {
+		int i = 0;
+		for (int bound = SPECIES.loopBound(n); i < bound; i += SPECIES.length()) {
+			DoubleVector v = DoubleVector.fromArray(SPECIES, x, xOffset + i).mul(alpha);
+			v.add(DoubleVector.fromArray(SPECIES, y, yOffset + i)).intoArray(y, yOffset + i);
+		}
+		for (; i < n; i++)
+			y[yOffset + i] += alpha * x[xOffset + i];
+	}
+
+	// The products are rounded in the same order as in Kernels, so the weights
+	// come out the same
+	void updateWeights(double[] w, double[] changes, int offset, double[] in,
+			int inOffset, int n, double rate, double delta, double momentum) {
+		int i = 0;
+		for (int bound = SPECIES.loopBound(n); i < bound; i += SPECIES.length()) {
+			DoubleVector last = DoubleVector.fromArray(SPECIES, changes, offset + i);
+			DoubleVector change = DoubleVector.fromArray(SPECIES, in, inOffset + i).mul(rate)
+					.mul(delta).add(last.mul(momentum));
+			change = change.blend(0, change.abs().lt(Double.MIN_NORMAL));
+			DoubleVector.fromArray(SPECIES, w, offset + i).add(change).intoArray(w, offset + i);
+			change.intoArray(changes, offset + i);
+		}
+		for (; i < n; i++) {
+			double change = rate * in[inOffset + i] * delta + momentum * changes[offset + i];
+			if (Math.abs(change) < Double.MIN_NORMAL)
+				change = 0;
+			w[offset + i] += change;
+			changes[offset + i] = change;
+		}
+	}
+}